@@ -0,0 +1,65 @@
+#!/bin/bash
+
+# Measures the request rate a single web process sustains for an enqueue endpoint
+# {} in the payload is replaced by the request number, so each request is distinct and not deduplicated onto a running job
+# Example: ./bin/load-test.sh my-org http://localhost:8080/api/executebatch '{"soqlWhereClause": "Name = '\''load-test-{}'\''"}' 2000 100
+# All requests come from one org, so start the web process with admission control disabled to measure enqueue throughput:
+# ADMISSION_MAX_ORG_JOBS=0 ADMISSION_MAX_ORG_RECORDS=0 ADMISSION_MAX_JOBS=0 ADMISSION_MAX_RECORDS=0
+
+# Check if at least three arguments are provided
+if [ -z "$1" ] || [ -z "$2" ] || [ -z "$3" ]; then
+    echo "Usage: $0 <salesforce-org-alias> <api-url> <payload-json> [total-requests] [concurrency]"
+    exit 1
+fi
+
+# Set variables from script arguments
+SF_ORG_ALIAS="$1"
+API_URL="$2"
+PAYLOAD_JSON="$3"
+TOTAL_REQUESTS="${4:-1000}"
+CONCURRENCY="${5:-50}"
+
+if [[ "$PAYLOAD_JSON" != *"{}"* ]]; then
+    echo "Warning: payload does not contain {}, identical requests are deduplicated and measure only the dedupe lookup."
+fi
+
+# Fetch Salesforce org details using the Salesforce CLI
+SF_ORG_INFO=$(sf org display -o "$SF_ORG_ALIAS" --json 2>/dev/null)
+if [ $? -ne 0 ]; then
+    echo "Error: Unable to fetch Salesforce org details for alias '$SF_ORG_ALIAS'. Ensure Salesforce CLI is installed and authenticated."
+    exit 1
+fi
+
+# Construct and encode the x-client-context JSON
+CLIENT_CONTEXT_JSON=$(echo "$SF_ORG_INFO" | jq -c '{
+  accessToken: .result.accessToken,
+  apiVersion: .result.apiVersion,
+  requestId: "req-load-test",
+  namespace: "demo",
+  orgId: .result.id,
+  orgDomainUrl: .result.instanceUrl,
+  userContext: { userId: "0055g00000EXAMPLE", username: .result.username }
+}')
+ENCODED_CLIENT_CONTEXT=$(echo -n "$CLIENT_CONTEXT_JSON" | base64 | tr -d '\n')
+
+# Fire requests concurrently and record status codes and latency for each, {} is the request number
+RESULTS=$(mktemp)
+START=$(date +%s%N)
+seq "$TOTAL_REQUESTS" | xargs -P "$CONCURRENCY" -I{} curl -s -o /dev/null -w "%{http_code} %{time_total}\n" -X POST "$API_URL" \
+  -H "Content-Type: application/json" \
+  -H "x-client-context: $ENCODED_CLIENT_CONTEXT" \
+  -d "$PAYLOAD_JSON" >> "$RESULTS"
+END=$(date +%s%N)
+
+# Print summary
+ELAPSED_MS=$(( (END - START) / 1000000 ))
+OK=$(grep -c '^200 ' "$RESULTS")
+REJECTED=$(grep -c '^429 ' "$RESULTS")
+echo "Requests: $TOTAL_REQUESTS, concurrency: $CONCURRENCY, elapsed: ${ELAPSED_MS}ms"
+echo "Successful: $OK, rejected by admission control (429): $REJECTED, failed: $((TOTAL_REQUESTS - OK - REJECTED))"
+if [ "$REJECTED" -gt 0 ]; then
+    echo "Warning: rejected requests return before enqueueing, set the ADMISSION_* limits to 0 on the web process to measure enqueue throughput."
+fi
+echo "Throughput: $(( TOTAL_REQUESTS * 1000 / (ELAPSED_MS > 0 ? ELAPSED_MS : 1) )) requests/sec"
+sort -k2 -n "$RESULTS" | awk '{ latency[NR] = $2 } END { printf "Latency p50: %.0fms, p99: %.0fms\n", latency[int(NR * 0.5)] * 1000, latency[int(NR * 0.99)] * 1000 }'
+rm -f "$RESULTS"
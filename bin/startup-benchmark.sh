@@ -0,0 +1,58 @@
+#!/bin/bash
+
+# Measures the time taken for the worker process to start listening for messages
+# Build first with: mvn clean package -Pworker-cds
+# Requires REDIS_URL to be set (e.g. via: heroku config --shell > .env && source .env)
+
+RUNS="${1:-5}"
+JAR="target/pricing-engine-0.0.1-SNAPSHOT.jar"
+WORKER_JAR="target/worker/pricing-engine-0.0.1-SNAPSHOT.jar"
+READY_MESSAGE="Worker is now listening for messages."
+
+if [ -z "$REDIS_URL" ]; then
+    echo "Error: REDIS_URL is not set."
+    exit 1
+fi
+if [ ! -f "$WORKER_JAR" ] || [ ! -f target/worker/application.jsa ]; then
+    echo "Error: Worker CDS archive not found. Run: mvn clean package -Pworker-cds"
+    exit 1
+fi
+
+# Starts the worker with the given arguments and returns the milliseconds until it is ready
+time_to_ready() {
+    local log_file
+    log_file=$(mktemp)
+    local start
+    start=$(date +%s%N)
+    java "$@" --spring.profiles.active=worker > "$log_file" 2>&1 &
+    local pid=$!
+    until grep -q "$READY_MESSAGE" "$log_file"; do
+        if ! kill -0 "$pid" 2>/dev/null; then
+            echo "Error: Worker exited before becoming ready, see $log_file" >&2
+            return 1
+        fi
+        sleep 0.05
+    done
+    local end
+    end=$(date +%s%N)
+    kill "$pid" && wait "$pid" 2>/dev/null
+    rm -f "$log_file"
+    echo $(( (end - start) / 1000000 ))
+}
+
+# Runs a scenario several times and prints the average
+benchmark() {
+    local name="$1"
+    shift
+    local total=0
+    for ((i = 1; i <= RUNS; i++)); do
+        local ms
+        ms=$(time_to_ready "$@") || exit 1
+        echo "$name run $i: ${ms}ms"
+        total=$((total + ms))
+    done
+    echo "$name average: $((total / RUNS))ms"
+}
+
+benchmark "Default" -jar "$JAR"
+benchmark "AOT + AppCDS" -XX:SharedArchiveFile=target/worker/application.jsa -Dspring.aot.enabled=true -jar "$WORKER_JAR"
@@ -50,6 +50,10 @@ export default class ManageJobs extends LightningElement {
                 this.elapsedTime = `Completed in ${elapsed.toFixed(2)} seconds`;
                 this.isSubscribeDisabled = false;
                 this.handleUnsubscribe(); // Optionally unsubscribe
+            } else if (response.data.payload.Status__c === 'Cancelled') {
+                this.elapsedTime = `Cancelled at ${this.progress}%`;
+                this.isSubscribeDisabled = false;
+                this.handleUnsubscribe();
             }
         };
         const messageCallback = messageCallbackHandler.bind(this);
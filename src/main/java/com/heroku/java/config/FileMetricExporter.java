@@ -0,0 +1,101 @@
+package com.heroku.java.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.DoublePointData;
+import io.opentelemetry.sdk.metrics.data.HistogramPointData;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.data.PointData;
+import io.opentelemetry.sdk.metrics.export.MetricExporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes metric points to a local file, one JSON object per line
+ */
+public class FileMetricExporter implements MetricExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileMetricExporter.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final BufferedWriter writer;
+
+    public FileMetricExporter(Path file) throws IOException {
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        logger.info("Exporting metrics to {}", file.toAbsolutePath());
+    }
+
+    @Override
+    public synchronized CompletableResultCode export(Collection<MetricData> metrics) {
+        try {
+            for (MetricData metric : metrics) {
+                for (PointData point : metric.getData().getPoints()) {
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put("name", metric.getName());
+                    line.put("epochMillis", point.getEpochNanos() / 1_000_000);
+                    Map<String, Object> attributes = new LinkedHashMap<>();
+                    point.getAttributes().forEach((key, value) -> attributes.put(key.getKey(), value));
+                    line.put("attributes", attributes);
+                    if (point instanceof LongPointData longPoint) {
+                        line.put("value", longPoint.getValue());
+                    } else if (point instanceof DoublePointData doublePoint) {
+                        line.put("value", doublePoint.getValue());
+                    } else if (point instanceof HistogramPointData histogramPoint) {
+                        line.put("count", histogramPoint.getCount());
+                        line.put("sum", histogramPoint.getSum());
+                        line.put("min", histogramPoint.hasMin() ? histogramPoint.getMin() : null);
+                        line.put("max", histogramPoint.hasMax() ? histogramPoint.getMax() : null);
+                    }
+                    writer.write(objectMapper.writeValueAsString(line));
+                    writer.newLine();
+                }
+            }
+            writer.flush();
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            logger.error("Error exporting metrics: {}", e.getMessage(), e);
+            return CompletableResultCode.ofFailure();
+        }
+    }
+
+    @Override
+    public AggregationTemporality getAggregationTemporality(InstrumentType instrumentType) {
+        return AggregationTemporality.CUMULATIVE;
+    }
+
+    @Override
+    public synchronized CompletableResultCode flush() {
+        try {
+            writer.flush();
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            return CompletableResultCode.ofFailure();
+        }
+    }
+
+    @Override
+    public synchronized CompletableResultCode shutdown() {
+        try {
+            writer.close();
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            return CompletableResultCode.ofFailure();
+        }
+    }
+}
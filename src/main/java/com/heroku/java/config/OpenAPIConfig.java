@@ -5,10 +5,12 @@ import java.util.Map;
 import org.springdoc.core.customizers.OperationCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.web.method.HandlerMethod;
 import io.swagger.v3.oas.models.Operation;
 
 @Configuration
+@Profile("!worker & !replay")
 public class OpenAPIConfig {
 
     @Bean
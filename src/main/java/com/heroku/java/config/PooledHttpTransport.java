@@ -0,0 +1,247 @@
+package com.heroku.java.config;
+
+import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.tools.VersionInfo;
+import com.sforce.ws.transport.Transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * WSC transport that sends SOAP requests through a single shared HttpClient. The client keeps persistent
+ * connections to each instance host (multiplexed over HTTP/2 where the org supports it, otherwise an HTTP/1.1
+ * keep-alive pool), so parallel create calls from all jobs reuse connections rather than repeating TLS handshakes.
+ * Request and response bodies are gzip compressed. The JVM proxy settings apply to the shared client, configs with
+ * their own proxy (ConnectorConfig.setProxy) are sent through a client for that proxy.
+ */
+public class PooledHttpTransport implements Transport {
+
+    private static final Logger logger = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+    // Headers managed by HttpClient itself that cannot be set on a request
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    // WSC waits indefinitely for a response by default
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 120_000;
+
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .connectTimeout(Duration.ofSeconds(30))
+        .proxy(ProxySelector.getDefault())
+        .build();
+
+    // Clients for configs with their own proxy, by proxy address
+    private static final Map<SocketAddress, HttpClient> proxyClients = new ConcurrentHashMap<>();
+
+    private ConnectorConfig config;
+    private URI uri;
+    private Map<String, String> headers;
+    private ByteArrayOutputStream requestBody;
+    private OutputStream output;
+    private boolean successful;
+
+    /**
+     * Shared client, also used for Salesforce REST calls so they reuse the same connections
+     * @return
+     */
+    public static HttpClient httpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Client for the proxy of the given config, the shared client if it has none
+     * @param config
+     * @return
+     */
+    public static HttpClient httpClient(ConnectorConfig config) {
+        Proxy proxy = config.getProxy();
+        if (proxy == null || proxy.type() != Proxy.Type.HTTP) {
+            return httpClient;
+        }
+        return proxyClients.computeIfAbsent(proxy.address(), address -> {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(30))
+                .proxy(ProxySelector.of((InetSocketAddress) address));
+            if (config.getProxyUsername() != null) {
+                PasswordAuthentication credentials = new PasswordAuthentication(config.getProxyUsername(),
+                    String.valueOf(config.getProxyPassword()).toCharArray());
+                builder.authenticator(new Authenticator() {
+                    @Override
+                    protected PasswordAuthentication getPasswordAuthentication() {
+                        return getRequestorType() == RequestorType.PROXY ? credentials : null;
+                    }
+                });
+            }
+            return builder.build();
+        });
+    }
+
+    /**
+     * Creates a WSC connector config for the given SOAP endpoint that uses this transport with compression and the
+     * default read timeout
+     * @param serviceEndpoint
+     * @param sessionId
+     * @return
+     */
+    public static ConnectorConfig connectorConfig(String serviceEndpoint, String sessionId) {
+        return connectorConfig(serviceEndpoint, sessionId, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a WSC connector config for the given SOAP endpoint that uses this transport with compression
+     * @param serviceEndpoint
+     * @param sessionId
+     * @param readTimeoutMillis time to wait for each response, requests fail with HttpTimeoutException after it
+     * @return
+     */
+    public static ConnectorConfig connectorConfig(String serviceEndpoint, String sessionId, int readTimeoutMillis) {
+        ConnectorConfig config = new ConnectorConfig();
+        config.setServiceEndpoint(serviceEndpoint);
+        config.setSessionId(sessionId);
+        config.setCompression(true);
+        config.setReadTimeout(readTimeoutMillis);
+        config.setTransportFactory(() -> {
+            PooledHttpTransport transport = new PooledHttpTransport();
+            transport.setConfig(config);
+            return transport;
+        });
+        return config;
+    }
+
+    /**
+     * Opens a connection to the instance host in the background so it is ready (TLS handshake complete) by the time
+     * the job makes its first calls. An org served over HTTP/2 multiplexes all calls over that one connection, for an
+     * org served over HTTP/1.1 as many connections are opened as the job will make concurrent calls.
+     * @param config config of the job's connection
+     * @param connections number of concurrent calls the job will make
+     */
+    public static void prewarm(ConnectorConfig config, int connections) {
+        URI endpoint = URI.create(config.getServiceEndpoint());
+        HttpClient client = httpClient(config);
+        HttpRequest request = HttpRequest.newBuilder(endpoint.resolve("/services/data/"))
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .timeout(Duration.ofSeconds(30))
+            .build();
+        long startNanos = System.nanoTime();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenCompose(response -> {
+            if (response.version() == HttpClient.Version.HTTP_2 || connections <= 1) {
+                return CompletableFuture.completedFuture(1);
+            }
+            // Each concurrent HTTP/1.1 request needs its own connection, the first one is reused
+            CompletableFuture<?>[] requests = new CompletableFuture<?>[connections];
+            for (int i = 0; i < connections; i++) {
+                requests[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+            }
+            return CompletableFuture.allOf(requests).thenApply(result -> connections);
+        }).whenComplete((opened, e) -> {
+            if (e != null) {
+                logger.warn("Error pre-warming connections to {}: {}", endpoint.getHost(), e.getMessage());
+            } else {
+                logger.debug("Pre-warmed {} connections to {} in {} ms", opened, endpoint.getHost(), (System.nanoTime() - startNanos) / 1_000_000);
+            }
+        });
+    }
+
+    @Override
+    public void setConfig(ConnectorConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public OutputStream connect(String url, String soapAction) throws IOException {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("SOAPAction", "\"" + soapAction + "\"");
+        headers.put("Content-Type", "text/xml; charset=UTF-8");
+        headers.put("Accept", "text/xml");
+        return connect(url, headers);
+    }
+
+    @Override
+    public OutputStream connect(String url, HashMap<String, String> headers) throws IOException {
+        return connect(url, headers, true);
+    }
+
+    /**
+     * Buffers the request body, which is sent when the response is requested
+     * @param url
+     * @param headers
+     * @param enableCompression
+     * @return stream to write the request body to
+     * @throws IOException
+     */
+    @Override
+    public OutputStream connect(String url, HashMap<String, String> headers, boolean enableCompression) throws IOException {
+        this.uri = URI.create(url);
+        this.headers = new HashMap<>(headers);
+        this.requestBody = new ByteArrayOutputStream();
+        if (config.isCompression() && enableCompression) {
+            this.headers.put("Content-Encoding", "gzip");
+            this.headers.put("Accept-Encoding", "gzip");
+            this.output = new GZIPOutputStream(requestBody);
+        } else {
+            this.output = requestBody;
+        }
+        return output;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        output.close();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(requestBody.toByteArray()))
+            .header("User-Agent", VersionInfo.info());
+        if (config.getReadTimeout() > 0) {
+            builder.timeout(Duration.ofMillis(config.getReadTimeout()));
+        }
+        Map<String, String> allHeaders = new HashMap<>(headers);
+        if (config.getHeaders() != null) {
+            allHeaders.putAll(config.getHeaders());
+        }
+        allHeaders.forEach((name, value) -> {
+            if (!RESTRICTED_HEADERS.contains(name.toLowerCase())) {
+                builder.setHeader(name, value);
+            }
+        });
+        HttpResponse<InputStream> response;
+        try {
+            response = httpClient(config).send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted sending request to " + uri);
+        }
+        // SOAP faults are returned with an error status and parsed from the body
+        successful = response.statusCode() < 400;
+        boolean gzip = response.headers().firstValue("Content-Encoding").map(encoding -> encoding.equalsIgnoreCase("gzip")).orElse(false);
+        return gzip ? new GZIPInputStream(response.body()) : response.body();
+    }
+
+    @Override
+    public boolean isSuccessful() {
+        return successful;
+    }
+}
@@ -5,6 +5,15 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.ws.ConnectionException;
 import com.sforce.ws.ConnectorConfig;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -12,6 +21,7 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -23,17 +33,62 @@ public class SalesforceClientContextFilter extends OncePerRequestFilter {
 
     private static final String X_CLIENT_CONTEXT_HEADER = "x-client-context";
 
+    // Thread safe and expensive to create, so shared across requests
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Tracer tracer;
+
+    public SalesforceClientContextFilter(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
         logger.info("Filter called");
+        // Root span for the request, enqueued jobs carry its trace context to the worker. Named by the route once it
+        // is matched, the URI contains job IDs.
+        Span span = tracer.spanBuilder(request.getMethod()).setSpanKind(SpanKind.SERVER).startSpan();
+        boolean async = false;
+        try (Scope scope = span.makeCurrent()) {
+            hydrateRequest(request, span);
+            filterChain.doFilter(request, response);
+            Object route = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            if (route != null) {
+                span.updateName(request.getMethod() + " " + route);
+                span.setAttribute("http.route", route.toString());
+            }
+            // Handlers returning a CompletableFuture respond after doFilter returns, end the span when they do
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new SpanEndingListener(span, response));
+                async = true;
+            }
+        } catch (ServletException | IOException | RuntimeException e) {
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR);
+            throw e;
+        } finally {
+            if (!async) {
+                endSpan(span, response);
+            }
+        }
+    }
+
+    private static void endSpan(Span span, HttpServletResponse response) {
+        span.setAttribute("http.response.status_code", response.getStatus());
+        if (response.getStatus() >= 500) {
+            span.setStatus(StatusCode.ERROR);
+        }
+        span.end();
+    }
+
+    private void hydrateRequest(HttpServletRequest request, Span span) throws ServletException {
         String encodedClientContext = request.getHeader(X_CLIENT_CONTEXT_HEADER);
         if (encodedClientContext == null)
             throw new ServletException("Required " + X_CLIENT_CONTEXT_HEADER + " header not found");
         try {
             // Decode the base64 header value and parse the JSON
             String decodedClientContext = new String(Base64.getDecoder().decode(encodedClientContext), StandardCharsets.UTF_8);
-            ObjectMapper objectMapper = new ObjectMapper();
             JsonNode clientContextNode = objectMapper.readTree(decodedClientContext);
             // Extract fields to hydrate a UserContext and WSC PartnerConnection on the request
             String accessToken = clientContextNode.get("accessToken").asText();
@@ -56,18 +111,55 @@ public class SalesforceClientContextFilter extends OncePerRequestFilter {
             // Make the SalesforceUserContext and PartnerConnection available in the request context
             request.setAttribute("salesforceUserContext", userContext);
             request.setAttribute("salesforcePartnerConnection", partnerConnection);
+            span.setAttribute("salesforce.org_id", orgId);
+            span.setAttribute("salesforce.request_id", requestId);
             logger.info("Set request attributes");
         } catch (Exception e) {
             throw new ServletException("Error processing " + X_CLIENT_CONTEXT_HEADER + " header", e);
         }
-        filterChain.doFilter(request, response);
+    }
+
+    /**
+     * Ends the request span once an async request completes, times out or fails
+     */
+    private static class SpanEndingListener implements AsyncListener {
+
+        private final Span span;
+        private final HttpServletResponse response;
+
+        private SpanEndingListener(Span span, HttpServletResponse response) {
+            this.span = span;
+            this.response = response;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            endSpan(span, response);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            span.setStatus(StatusCode.ERROR, "Request timed out");
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            if (event.getThrowable() != null) {
+                span.recordException(event.getThrowable());
+            }
+            span.setStatus(StatusCode.ERROR);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Async restarted by a later dispatch, keep listening
+            event.getAsyncContext().addListener(this);
+        }
     }
 
     private PartnerConnection initializePartnerConnection(String accessToken, String apiVersion, String orgDomainUrl, String username) throws ConnectionException {
-        ConnectorConfig config = new ConnectorConfig();
+        ConnectorConfig config = PooledHttpTransport.connectorConfig(orgDomainUrl + "/services/Soap/u/" + apiVersion, accessToken);
         config.setUsername(username);
-        config.setSessionId(accessToken);
-        config.setServiceEndpoint(orgDomainUrl + "/services/Soap/u/" + apiVersion);
         return new PartnerConnection(config);
     }
 }
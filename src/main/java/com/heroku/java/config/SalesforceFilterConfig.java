@@ -1,16 +1,19 @@
 package com.heroku.java.config;
 
+import io.opentelemetry.api.trace.Tracer;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 
 @Configuration
+@Profile("!worker & !replay")
 public class SalesforceFilterConfig {
 
     @Bean
-    FilterRegistrationBean<SalesforceClientContextFilter> salesforceFilterRegistration() {
+    FilterRegistrationBean<SalesforceClientContextFilter> salesforceFilterRegistration(Tracer tracer) {
         FilterRegistrationBean<SalesforceClientContextFilter> registrationBean = new FilterRegistrationBean<>();
-        SalesforceClientContextFilter filter = new SalesforceClientContextFilter();
+        SalesforceClientContextFilter filter = new SalesforceClientContextFilter(tracer);
         registrationBean.setFilter(filter);
         registrationBean.addUrlPatterns("/api/*");
         return registrationBean;
@@ -0,0 +1,95 @@
+package com.heroku.java.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.exporter.otlp.http.metrics.OtlpHttpMetricExporter;
+import io.opentelemetry.exporter.otlp.http.trace.OtlpHttpSpanExporter;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.SdkMeterProviderBuilder;
+import io.opentelemetry.sdk.metrics.export.PeriodicMetricReader;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SdkTracerProviderBuilder;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Configures OpenTelemetry tracing and metrics for the web and worker processes.
+ * Set tracing.exporter to 'file' (JSON lines written to tracing.file) or 'otlp' (sent to tracing.otlp.endpoint), the default 'none' only propagates trace context.
+ * Metrics are configured in the same way via the metrics.* properties.
+ */
+@Configuration
+public class TelemetryConfig {
+
+    private static final AttributeKey<String> SERVICE_NAME = AttributeKey.stringKey("service.name");
+
+    @Bean(destroyMethod = "close")
+    SdkTracerProvider sdkTracerProvider(
+            @Value("${spring.application.name}") String serviceName,
+            @Value("${tracing.exporter:none}") String exporter,
+            @Value("${tracing.file:traces.jsonl}") String file,
+            @Value("${tracing.otlp.endpoint:http://localhost:4318/v1/traces}") String otlpEndpoint) throws IOException {
+        SdkTracerProviderBuilder builder = SdkTracerProvider.builder().setResource(resource(serviceName));
+        switch (exporter) {
+            case "file" -> builder.addSpanProcessor(BatchSpanProcessor.builder(new FileSpanExporter(Path.of(file))).build());
+            case "otlp" -> builder.addSpanProcessor(BatchSpanProcessor.builder(OtlpHttpSpanExporter.builder().setEndpoint(otlpEndpoint).build()).build());
+            case "none" -> { }
+            default -> throw new IllegalArgumentException("Unknown tracing.exporter: " + exporter);
+        }
+        return builder.build();
+    }
+
+    @Bean(destroyMethod = "close")
+    SdkMeterProvider sdkMeterProvider(
+            @Value("${spring.application.name}") String serviceName,
+            @Value("${metrics.exporter:none}") String exporter,
+            @Value("${metrics.file:metrics.jsonl}") String file,
+            @Value("${metrics.otlp.endpoint:http://localhost:4318/v1/metrics}") String otlpEndpoint,
+            @Value("${metrics.interval-seconds:30}") int intervalSeconds) throws IOException {
+        SdkMeterProviderBuilder builder = SdkMeterProvider.builder().setResource(resource(serviceName));
+        Duration interval = Duration.ofSeconds(intervalSeconds);
+        switch (exporter) {
+            case "file" -> builder.registerMetricReader(PeriodicMetricReader.builder(new FileMetricExporter(Path.of(file))).setInterval(interval).build());
+            case "otlp" -> builder.registerMetricReader(PeriodicMetricReader.builder(OtlpHttpMetricExporter.builder().setEndpoint(otlpEndpoint).build()).setInterval(interval).build());
+            case "none" -> { }
+            default -> throw new IllegalArgumentException("Unknown metrics.exporter: " + exporter);
+        }
+        return builder.build();
+    }
+
+    @Bean
+    OpenTelemetry openTelemetry(SdkTracerProvider sdkTracerProvider, SdkMeterProvider sdkMeterProvider) {
+        return OpenTelemetrySdk.builder()
+            .setTracerProvider(sdkTracerProvider)
+            .setMeterProvider(sdkMeterProvider)
+            .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+            .build();
+    }
+
+    @Bean
+    Tracer tracer(OpenTelemetry openTelemetry) {
+        return openTelemetry.getTracer("com.heroku.java");
+    }
+
+    @Bean
+    Meter meter(OpenTelemetry openTelemetry) {
+        return openTelemetry.getMeter("com.heroku.java");
+    }
+
+    private static Resource resource(String serviceName) {
+        return Resource.getDefault().merge(Resource.create(Attributes.of(SERVICE_NAME, serviceName)));
+    }
+}
@@ -0,0 +1,43 @@
+package com.heroku.java.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import com.heroku.java.services.PricingEngineWorkerService;
+import com.heroku.java.services.SampleDataWorkerService;
+
+/**
+ * Subscribes the worker services to the quoteQueue and dataQueue channels.
+ * The container is a lifecycle bean so it only connects to Redis once the context has refreshed,
+ * this allows the build to perform a training run (see worker-cds Maven profile) without a Redis instance.
+ */
+@Configuration
+@Profile("worker")
+public class WorkerQueueConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkerQueueConfig.class);
+
+    @Bean
+    RedisMessageListenerContainer workerMessageListenerContainer(RedisConnectionFactory redisConnectionFactory,
+            PricingEngineWorkerService pricingEngineWorkerService, SampleDataWorkerService sampleDataWorkerService) {
+        logger.info("Worker subscribing to Redis queues: quoteQueue, dataQueue");
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener(pricingEngineWorkerService, new PatternTopic("quoteQueue"));
+        container.addMessageListener(sampleDataWorkerService, new PatternTopic("dataQueue"));
+        return container;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void workerReady() {
+        logger.info("Worker is now listening for messages.");
+    }
+}
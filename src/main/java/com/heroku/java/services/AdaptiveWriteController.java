@@ -0,0 +1,379 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+
+import jakarta.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Adapts the number of concurrent create requests made to each org (AIMD) based on observed latency and
+ * lock, timeout or limit errors, and splits records into batches by both record count and estimated payload size.
+ * Decisions are reported as the writes.* metrics. Limits are kept per process, by workers and by web processes
+ * pricing small requests synchronously (see InlinePricingService).
+ */
+@Service
+@Profile("!replay")
+public class AdaptiveWriteController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveWriteController.class);
+
+    private static final AttributeKey<String> ORG = AttributeKey.stringKey("org");
+    private static final AttributeKey<String> DIRECTION = AttributeKey.stringKey("direction");
+    private static final AttributeKey<String> REASON = AttributeKey.stringKey("reason");
+
+    // Status and exception codes that indicate the org is overloaded rather than the data being invalid
+    private static final Set<String> OVERLOADED_CODES = Set.of(
+        "UNABLE_TO_LOCK_ROW", "REQUEST_RUNNING_TOO_LONG", "REQUEST_LIMIT_EXCEEDED", "SERVER_UNAVAILABLE");
+
+    // Read timeouts are no shorter than the 120 second SOQL query timeout as queries share the connection
+    private static final long MIN_READ_TIMEOUT_MILLIS = 120_000;
+
+    @Autowired
+    private Meter meter;
+
+    @Value("${writes.max-batch-records:200}")
+    private int maxBatchRecords;
+
+    @Value("${writes.max-batch-bytes:1000000}")
+    private int maxBatchBytes;
+
+    @Value("${writes.min-concurrency:1}")
+    private int minConcurrency;
+
+    @Value("${writes.initial-concurrency:8}")
+    private int initialConcurrency;
+
+    @Value("${writes.max-concurrency:20}")
+    private int maxConcurrency;
+
+    @Value("${writes.target-latency-ms:10000}")
+    private long targetLatencyMillis;
+
+    // Limits of orgs without requests for this long are dropped, 0 keeps them
+    @Value("${writes.idle-eviction-seconds:0}")
+    private long idleEvictionSeconds;
+
+    private final Map<String, OrgWriteLimit> limits = new ConcurrentHashMap<>();
+
+    private LongHistogram concurrencyLimitHistogram;
+    private LongCounter adjustmentCounter;
+    private LongHistogram batchRecordsHistogram;
+    private LongHistogram batchBytesHistogram;
+    private LongHistogram latencyHistogram;
+
+    @PostConstruct
+    public void createInstruments() {
+        concurrencyLimitHistogram = meter.histogramBuilder("writes.concurrency.limit").ofLongs()
+            .setDescription("Concurrent create request limit after each adjustment").build();
+        adjustmentCounter = meter.counterBuilder("writes.concurrency.adjustments")
+            .setDescription("Concurrency limit adjustments by direction and reason").build();
+        batchRecordsHistogram = meter.histogramBuilder("writes.batch.records").ofLongs()
+            .setDescription("Records per create request").build();
+        batchBytesHistogram = meter.histogramBuilder("writes.batch.bytes").ofLongs().setUnit("By")
+            .setDescription("Estimated payload size per create request").build();
+        latencyHistogram = meter.histogramBuilder("writes.latency").ofLongs().setUnit("ms")
+            .setDescription("Create request latency").build();
+    }
+
+    /**
+     * Maximum number of requests that may ever be in flight for one org, used to size thread pools
+     * @return
+     */
+    public int maxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Read timeout for requests to orgs, a multiple of the target latency so that requests that stall time out and
+     * halve the org's limit
+     * @return
+     */
+    public int readTimeoutMillis() {
+        return (int) Math.max(MIN_READ_TIMEOUT_MILLIS, targetLatencyMillis * 6);
+    }
+
+    /**
+     * Maximum number of records sent in one create request
+     * @return
+     */
+    public int maxBatchRecords() {
+        return maxBatchRecords;
+    }
+
+    /**
+     * Maximum estimated payload size of one create request
+     * @return
+     */
+    public int maxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Returns the write limit for the org serving the given endpoint, shared by all jobs for that org
+     * @param serviceEndpoint
+     * @return
+     */
+    public OrgWriteLimit forOrg(String serviceEndpoint) {
+        String org = URI.create(serviceEndpoint).getHost();
+        long nowNanos = System.nanoTime();
+        evictIdle(nowNanos);
+        // Marked as used while held by the map so it cannot be evicted before the caller makes its requests
+        return limits.compute(org, (key, limit) -> (limit != null ? limit : new OrgWriteLimit(key)).used(nowNanos));
+    }
+
+    /**
+     * Drops the limits of orgs without requests in flight or made within the idle eviction time, the next job for
+     * such an org starts from the initial limit
+     * @param nowNanos
+     */
+    void evictIdle(long nowNanos) {
+        if (idleEvictionSeconds <= 0) {
+            return;
+        }
+        long idleNanos = TimeUnit.SECONDS.toNanos(idleEvictionSeconds);
+        for (String org : limits.keySet()) {
+            limits.computeIfPresent(org, (key, limit) -> limit.idleFor(nowNanos) >= idleNanos ? null : limit);
+        }
+    }
+
+    /**
+     * Splits records into batches no larger than the configured record count and estimated payload size. Batches are
+     * views of records, QuoteLineItems are estimated from their lines so they are only built when a batch is copied.
+     * @param records
+     * @return
+     */
+    public List<List<SObject>> partition(List<SObject> records) {
+        IntToLongFunction estimate = records instanceof QuotePricing.QuoteLineItems quoteLineItems
+            ? quoteLineItems::estimateBytes
+            : i -> estimateBytes(records.get(i));
+        List<List<SObject>> batches = new ArrayList<>();
+        int start = 0;
+        long batchBytes = 0;
+        for (int i = 0; i < records.size(); i++) {
+            long recordBytes = estimate.applyAsLong(i);
+            boolean full = i - start >= maxBatchRecords || (i > start && batchBytes + recordBytes > maxBatchBytes);
+            if (full) {
+                batches.add(records.subList(start, i));
+                batchBytesHistogram.record(batchBytes);
+                start = i;
+                batchBytes = 0;
+            }
+            batchBytes += recordBytes;
+        }
+        if (start < records.size()) {
+            batches.add(records.subList(start, records.size()));
+            batchBytesHistogram.record(batchBytes);
+        }
+        batches.forEach(batch -> batchRecordsHistogram.record(batch.size()));
+        return batches;
+    }
+
+    /**
+     * Approximates the size of the SOAP XML for a record from its field names and values
+     * @param record
+     * @return
+     */
+    static long estimateBytes(SObject record) {
+        long bytes = estimateBytes(record.getType());
+        for (Iterator<XmlObject> it = record.getChildren(); it.hasNext(); ) {
+            XmlObject field = it.next();
+            bytes += estimateBytes(field.getName().getLocalPart(), field.getValue());
+        }
+        return bytes;
+    }
+
+    /**
+     * Approximates the size of the SOAP XML for a record of the given type without its fields
+     * @param type
+     * @return
+     */
+    static long estimateBytes(String type) {
+        return 64 + type.length();
+    }
+
+    /**
+     * Approximates the size of the SOAP XML for a field
+     * @param name
+     * @param value
+     * @return
+     */
+    static long estimateBytes(String name, Object value) {
+        return name.length() * 2L + 5 + String.valueOf(value).length();
+    }
+
+    /**
+     * Returns true if the results or exception indicate the org is overloaded (row locks, timeouts or limits)
+     * @param results
+     * @param exception
+     * @return
+     */
+    public static boolean isOverloaded(SaveResult[] results, Exception exception) {
+        if (exception != null) {
+            if (isTimeout(exception) || isTimeout(exception.getCause())) {
+                return true;
+            }
+            return exception instanceof ApiFault apiFault && OVERLOADED_CODES.contains(String.valueOf(apiFault.getExceptionCode()));
+        }
+        for (SaveResult result : results) {
+            if (!result.isSuccess() && result.getErrors().length > 0) {
+                if (OVERLOADED_CODES.contains(String.valueOf(result.getErrors()[0].getStatusCode()))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Failed results for a create request that did not complete, keeps results aligned with the records submitted
+     * @param size
+     * @param e
+     * @return
+     */
+    public static SaveResult[] failedResults(int size, Exception e) {
+        SaveResult[] results = new SaveResult[size];
+        for (int i = 0; i < size; i++) {
+            com.sforce.soap.partner.Error error = new com.sforce.soap.partner.Error();
+            error.setStatusCode(com.sforce.soap.partner.StatusCode.UNKNOWN_EXCEPTION);
+            error.setMessage(e.getMessage());
+            results[i] = new SaveResult();
+            results[i].setSuccess(false);
+            results[i].setErrors(new com.sforce.soap.partner.Error[] { error });
+        }
+        return results;
+    }
+
+    private static boolean isTimeout(Throwable throwable) {
+        return throwable instanceof SocketTimeoutException || throwable instanceof HttpTimeoutException;
+    }
+
+    /**
+     * Concurrency limit for one org. Increases by one after a full window of requests completes within the target
+     * latency, halves on overload errors and reduces by a quarter when latency exceeds the target.
+     */
+    public class OrgWriteLimit {
+
+        private final String org;
+        private final Attributes attributes;
+        private int limit;
+        private int inFlight;
+        private int successesSinceIncrease;
+        private long lastDecreaseNanos;
+        private long lastUsedNanos;
+
+        private OrgWriteLimit(String org) {
+            this.org = org;
+            this.attributes = Attributes.of(ORG, org);
+            this.limit = Math.max(minConcurrency, Math.min(initialConcurrency, maxConcurrency));
+            this.lastDecreaseNanos = System.nanoTime();
+            this.lastUsedNanos = lastDecreaseNanos;
+        }
+
+        private synchronized OrgWriteLimit used(long nowNanos) {
+            lastUsedNanos = Math.max(lastUsedNanos, nowNanos);
+            return this;
+        }
+
+        /**
+         * Time since the last request completed or the limit was returned by forOrg, 0 while requests are in flight
+         * @param nowNanos
+         * @return
+         */
+        private synchronized long idleFor(long nowNanos) {
+            return inFlight > 0 ? 0 : nowNanos - lastUsedNanos;
+        }
+
+        /**
+         * Current number of requests that may be in flight for the org
+         * @return
+         */
+        public synchronized int limit() {
+            return limit;
+        }
+
+        /**
+         * Waits until a request may be made to the org
+         * @return start time to pass to release
+         * @throws InterruptedException
+         */
+        public synchronized long acquire() throws InterruptedException {
+            while (inFlight >= limit) {
+                wait();
+            }
+            inFlight++;
+            return System.nanoTime();
+        }
+
+        /**
+         * Gives up a slot obtained from acquire without making a request, the limit is not adjusted
+         */
+        public synchronized void abandon() {
+            inFlight--;
+            lastUsedNanos = System.nanoTime();
+            notifyAll();
+        }
+
+        /**
+         * Records the outcome of a request and adjusts the limit
+         * @param startNanos value returned from acquire
+         * @param overloaded see isOverloaded
+         */
+        public synchronized void release(long startNanos, boolean overloaded) {
+            inFlight--;
+            lastUsedNanos = System.nanoTime();
+            long latencyMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            latencyHistogram.record(latencyMillis, attributes);
+            // Requests started before the last decrease were sent at the old limit so do not decrease again
+            boolean decreaseAllowed = startNanos > lastDecreaseNanos;
+            if (overloaded && decreaseAllowed) {
+                adjust(Math.max(minConcurrency, limit / 2), "decrease", "error");
+            } else if (latencyMillis > targetLatencyMillis && decreaseAllowed) {
+                adjust(Math.max(minConcurrency, limit - Math.max(1, limit / 4)), "decrease", "latency");
+            } else if (!overloaded && latencyMillis <= targetLatencyMillis && ++successesSinceIncrease >= limit) {
+                adjust(Math.min(maxConcurrency, limit + 1), "increase", "latency");
+            }
+            notifyAll();
+        }
+
+        private void adjust(int newLimit, String direction, String reason) {
+            if (direction.equals("decrease")) {
+                lastDecreaseNanos = System.nanoTime();
+            }
+            successesSinceIncrease = 0;
+            if (newLimit == limit) {
+                return;
+            }
+            logger.debug("Adjusting concurrency for {} from {} to {} ({})", org, limit, newLimit, reason);
+            limit = newLimit;
+            concurrencyLimitHistogram.record(limit, attributes);
+            adjustmentCounter.add(1, attributes.toBuilder().put(DIRECTION, direction).put(REASON, reason).build());
+        }
+    }
+}
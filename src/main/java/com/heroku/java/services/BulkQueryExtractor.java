@@ -0,0 +1,296 @@
+package com.heroku.java.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heroku.java.config.PooledHttpTransport;
+import com.sforce.soap.partner.PartnerConnection;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Extracts OpportunityLineItems with a Bulk API 2.0 query, parsing each CSV result page as it streams in
+ * and grouping lines by Opportunity. The next result page is requested as soon as the locator for it is
+ * known (response headers), so it downloads while the current page is being parsed.
+ * Line items of results larger than the spill threshold are written to a memory-mapped OpportunitySnapshot instead of
+ * the heap, the Opportunity Ids and the Quotes built for them are still held on the heap by the worker.
+ */
+@Service
+@Profile("worker")
+public class BulkQueryExtractor {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkQueryExtractor.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Shares connections with the SOAP calls made by the job
+    private final HttpClient httpClient = PooledHttpTransport.httpClient();
+
+    @Autowired
+    private Tracer tracer;
+
+    @Autowired
+    private JobCancellation cancellation;
+
+    @Autowired
+    private WorkerDrain drain;
+
+    @Value("${bulk.query.max-records-per-page:50000}")
+    private int maxRecordsPerPage;
+
+    @Value("${bulk.query.poll-interval-ms:2000}")
+    private long pollIntervalMillis;
+
+    @Value("${snapshot.directory:${java.io.tmpdir}}")
+    private String snapshotDirectory;
+
+    @Value("${snapshot.spill-threshold-lines:1000000}")
+    private long spillThresholdLines;
+
+    /**
+     * Queries OpportunityLineItems of Opportunities matching the WHERE clause via a Bulk API 2.0 query job.
+     * Unlike the SOAP query, Opportunities without line items are not returned.
+     * If the job is cancelled the query job is aborted and JobCancelledException is thrown, if the worker is shut down
+     * while waiting for the query job it is aborted and JobHandoffException is thrown, as it is between result pages.
+     * @param connection
+     * @param soqlWhereClause WHERE clause against the Opportunity object
+     * @param jobId job to check for cancellation while waiting and between result pages
+     * @return lines grouped by OpportunityId, on the heap or in a temporary snapshot file deleted on close
+     * @throws Exception
+     */
+    public OpportunityLines extractOpportunityLines(PartnerConnection connection, String soqlWhereClause, String jobId) throws Exception {
+        // Pricing needs only line fields (the regional discount is fixed to US), so as in OpportunityQuery no Opportunity
+        // fields are selected. Add Opportunity.* parent fields here and to OpportunityLine if pricing comes to use them.
+        String soql = String.format(
+            "SELECT Id, OpportunityId, PricebookEntryId, Quantity, UnitPrice FROM OpportunityLineItem " +
+            "WHERE OpportunityId IN (SELECT Id FROM Opportunity WHERE %s)", soqlWhereClause);
+        String sessionId = connection.getSessionHeader().getSessionId();
+        String queryJobsUrl = restBaseUrl(connection.getConfig().getServiceEndpoint()) + "/jobs/query";
+        Span span = tracer.spanBuilder("bulk query OpportunityLineItem").startSpan();
+        try (Scope scope = span.makeCurrent()) {
+            String bulkJobId = createQueryJob(queryJobsUrl, sessionId, soql);
+            span.setAttribute("salesforce.bulk_job_id", bulkJobId);
+            long recordCount = waitForQueryJob(queryJobsUrl + "/" + bulkJobId, sessionId, jobId);
+            logger.info("Bulk query job {} completed with {} OpportunityLineItems", bulkJobId, recordCount);
+            span.setAttribute("salesforce.records", recordCount);
+            String resultsUrl = queryJobsUrl + "/" + bulkJobId + "/results";
+            if (recordCount > spillThresholdLines) {
+                return spillResults(resultsUrl, sessionId, jobId, recordCount);
+            }
+            Map<String, List<OpportunityLine>> opportunityLines = new LinkedHashMap<>();
+            readResults(resultsUrl, sessionId, jobId,
+                line -> opportunityLines.computeIfAbsent(line.opportunityId, key -> new ArrayList<>()).add(line));
+            return OpportunityLines.of(opportunityLines);
+        } finally {
+            span.end();
+        }
+    }
+
+    private String createQueryJob(String queryJobsUrl, String sessionId, String soql) throws Exception {
+        String body = objectMapper.writeValueAsString(Map.of("operation", "query", "query", soql));
+        HttpRequest request = requestBuilder(queryJobsUrl, sessionId)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+        JsonNode job = sendForJson(request);
+        logger.info("Created Bulk query job: {}", job.get("id").asText());
+        return job.get("id").asText();
+    }
+
+    private long waitForQueryJob(String queryJobUrl, String sessionId, String jobId) throws Exception {
+        while (true) {
+            if (cancellation.isCancelled(jobId)) {
+                abortQueryJob(queryJobUrl, sessionId);
+                throw new JobCancelledException(jobId, 1);
+            }
+            if (drain.isDraining()) {
+                abortQueryJob(queryJobUrl, sessionId);
+                throw new JobHandoffException(jobId);
+            }
+            JsonNode job = sendForJson(requestBuilder(queryJobUrl, sessionId).GET().build());
+            String state = job.get("state").asText();
+            switch (state) {
+                case "JobComplete":
+                    return job.path("numberRecordsProcessed").asLong();
+                case "Failed":
+                case "Aborted":
+                    throw new IOException("Bulk query job " + job.get("id").asText() + " " + state + ": " + job.path("errorMessage").asText());
+                default:
+                    logger.info("Bulk query job {} - State: {}", job.get("id").asText(), state);
+                    Thread.sleep(pollIntervalMillis);
+            }
+        }
+    }
+
+    /**
+     * Aborts the query job so the org stops processing it
+     * @param queryJobUrl
+     * @param sessionId
+     */
+    private void abortQueryJob(String queryJobUrl, String sessionId) {
+        HttpRequest request = requestBuilder(queryJobUrl, sessionId)
+            .header("Content-Type", "application/json")
+            .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"state\":\"Aborted\"}"))
+            .build();
+        try {
+            JsonNode job = sendForJson(request);
+            logger.info("Aborted Bulk query job {}", job.get("id").asText());
+        } catch (Exception e) {
+            // The job may have completed in the meantime
+            logger.warn("Error aborting Bulk query job {}: {}", queryJobUrl, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes results to a temporary snapshot file in the snapshot directory
+     * @param resultsUrl
+     * @param sessionId
+     * @param jobId
+     * @param recordCount
+     * @return
+     * @throws Exception
+     */
+    private OpportunitySnapshot spillResults(String resultsUrl, String sessionId, String jobId, long recordCount) throws Exception {
+        Path spillFile = Files.createTempFile(Files.createDirectories(Path.of(snapshotDirectory)), jobId + "-", ".snapshot");
+        logger.info("Spilling {} OpportunityLineItems to {}", recordCount, spillFile);
+        Span.current().setAttribute("job.spilled", true);
+        try (OpportunitySnapshot.Writer writer = OpportunitySnapshot.create(spillFile)) {
+            readResults(resultsUrl, sessionId, jobId, writer::add);
+        } catch (Exception e) {
+            Files.deleteIfExists(spillFile);
+            throw e;
+        }
+        return OpportunitySnapshot.openTemporary(spillFile);
+    }
+
+    /**
+     * Reads result pages, requesting the next page as soon as its locator is returned and parsing each page as it streams in
+     * @param resultsUrl
+     * @param sessionId
+     * @param jobId job to check for cancellation and worker shutdown between pages
+     * @param sink receives each line
+     * @throws Exception
+     */
+    private void readResults(String resultsUrl, String sessionId, String jobId, LineSink sink) throws Exception {
+        long lines = 0;
+        CompletableFuture<HttpResponse<InputStream>> page = requestPage(resultsUrl, sessionId, null);
+        int pages = 0;
+        try {
+            while (page != null) {
+                HttpResponse<InputStream> response = page.get();
+                if (response.statusCode() != 200) {
+                    String error = new String(response.body().readAllBytes(), StandardCharsets.UTF_8);
+                    throw new IOException("Bulk query results request failed with status " + response.statusCode() + ": " + error);
+                }
+                // Prefetch the next page before parsing this one
+                String locator = response.headers().firstValue("Sforce-Locator").orElse("null");
+                page = "null".equals(locator) ? null : requestPage(resultsUrl, sessionId, locator);
+                try (InputStream body = decode(response)) {
+                    lines += parsePage(body, sink);
+                }
+                pages++;
+                cancellation.throwIfCancelled(jobId, 1);
+                drain.throwIfDraining(jobId);
+            }
+        } catch (Exception e) {
+            // Release the connection held by a prefetched page
+            if (page != null) {
+                page.thenAccept(response -> {
+                    try {
+                        response.body().close();
+                    } catch (IOException closeException) {
+                        logger.debug("Error closing prefetched page: {}", closeException.getMessage());
+                    }
+                });
+            }
+            throw e;
+        }
+        logger.info("Read {} Bulk query result pages with {} OpportunityLineItems", pages, lines);
+    }
+
+    private long parsePage(InputStream body, LineSink sink) throws IOException {
+        CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build()
+            .parse(new InputStreamReader(body, StandardCharsets.UTF_8));
+        long lines = 0;
+        for (CSVRecord record : parser) {
+            sink.add(new OpportunityLine(
+                record.get("Id"),
+                record.get("OpportunityId"),
+                record.get("PricebookEntryId"),
+                Double.parseDouble(record.get("Quantity")),
+                Double.parseDouble(record.get("UnitPrice"))));
+            lines++;
+        }
+        return lines;
+    }
+
+    private CompletableFuture<HttpResponse<InputStream>> requestPage(String resultsUrl, String sessionId, String locator) {
+        String url = resultsUrl + "?maxRecords=" + maxRecordsPerPage + (locator == null ? "" : "&locator=" + locator);
+        HttpRequest request = requestBuilder(url, sessionId)
+            .header("Accept", "text/csv")
+            .header("Accept-Encoding", "gzip")
+            .GET()
+            .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    private InputStream decode(HttpResponse<InputStream> response) throws IOException {
+        boolean gzip = response.headers().firstValue("Content-Encoding").map(encoding -> encoding.equalsIgnoreCase("gzip")).orElse(false);
+        return gzip ? new GZIPInputStream(response.body()) : response.body();
+    }
+
+    private JsonNode sendForJson(HttpRequest request) throws Exception {
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() >= 300) {
+            throw new IOException("Bulk API request to " + request.uri() + " failed with status " + response.statusCode() + ": " + response.body());
+        }
+        return objectMapper.readTree(response.body());
+    }
+
+    private HttpRequest.Builder requestBuilder(String url, String sessionId) {
+        return HttpRequest.newBuilder(URI.create(url))
+            .timeout(Duration.ofMinutes(2))
+            .header("Authorization", "Bearer " + sessionId);
+    }
+
+    private interface LineSink {
+        void add(OpportunityLine line) throws IOException;
+    }
+
+    /**
+     * Converts the WSC SOAP endpoint (e.g. https://host/services/Soap/u/62.0) to the REST API base URL
+     * @param serviceEndpoint
+     * @return
+     */
+    private static String restBaseUrl(String serviceEndpoint) {
+        int soapPath = serviceEndpoint.indexOf("/services/Soap/u/");
+        String apiVersion = serviceEndpoint.substring(soapPath + "/services/Soap/u/".length()).split("/")[0];
+        return serviceEndpoint.substring(0, soapPath) + "/services/data/v" + apiVersion;
+    }
+}
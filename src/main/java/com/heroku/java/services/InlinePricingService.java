@@ -0,0 +1,229 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.sobject.SObject;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prices small executebatch requests on the web process and returns the created Quote Ids in the response, avoiding
+ * the queue, worker pick up and progress events. Uses the same extraction, pricing and create batching as the worker
+ * and records results in the job ledger so the job can be downloaded and rolled back. Requests above the configured
+ * size, made while all slots are busy or whose query takes longer than the timeout are left to the caller to enqueue.
+ * Once records are being created the request runs to completion, spring.mvc.async.request-timeout must exceed the
+ * timeout plus the time to create sync.max-records records so the client is not told it failed while they are created.
+ */
+@Service
+@Profile("!worker & !replay")
+public class InlinePricingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(InlinePricingService.class);
+
+    @Autowired
+    private Tracer tracer;
+
+    @Autowired
+    private JobResultLedger ledger;
+
+    @Autowired
+    private AdaptiveWriteController writeController;
+
+    @Autowired
+    private OpportunityQuery opportunityQuery;
+
+    @Value("${sync.max-opportunities:50}")
+    private int maxOpportunities;
+
+    @Value("${sync.max-records:1000}")
+    private int maxRecords;
+
+    @Value("${sync.max-concurrent-jobs:4}")
+    private int maxConcurrentJobs;
+
+    @Value("${sync.timeout-seconds:10}")
+    private long timeoutSeconds;
+
+    @Value("${pricing.volume-tiers:}")
+    private String volumeTierConfig;
+
+    private NavigableMap<Double, Double> volumeTiers;
+    private Semaphore slots;
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        volumeTiers = QuotePricing.volumeTiers(volumeTierConfig);
+        slots = new Semaphore(maxConcurrentJobs);
+        executor = Context.taskWrapping(Executors.newFixedThreadPool(maxConcurrentJobs, runnable -> {
+            Thread thread = new Thread(runnable, "inline-pricing");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Queries the Opportunities and, if there are no more than the synchronous limits allow, creates their Quotes and
+     * QuoteLineItems
+     * @param connection connection of the requesting user
+     * @param jobId job ID the results are recorded under
+     * @param soqlWhereClause
+     * @param consolidateLines
+     * @return completes with the result, or null if the request is too large, orders or limits its own results, all
+     * slots are busy or it could not start creating records within the timeout and it should be queued
+     */
+    public CompletableFuture<Result> price(PartnerConnection connection, String jobId, String soqlWhereClause, boolean consolidateLines) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        if (OpportunityQuery.ordersOrLimits(soqlWhereClause)) {
+            // The size check relies on appending a LIMIT, which the clause already constrains
+            logger.info("Job {} orders or limits its own results, queueing it", jobId);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!slots.tryAcquire()) {
+            logger.info("All {} synchronous pricing slots busy, queueing job {}", maxConcurrentJobs, jobId);
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> execute(connection, jobId, soqlWhereClause, consolidateLines, deadlineNanos), executor)
+                .whenComplete((result, e) -> slots.release());
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    private Result execute(PartnerConnection connection, String jobId, String soqlWhereClause, boolean consolidateLines, long deadlineNanos) {
+        Span span = tracer.spanBuilder("price inline").setAttribute("job.id", jobId).startSpan();
+        try (Scope scope = span.makeCurrent()) {
+            // Fetch one Opportunity more than allowed to tell whether the request is over the limit
+            OpportunityLines opportunityLines = OpportunityLines.of(opportunityQuery.queryOpportunityLines(connection, soqlWhereClause, maxOpportunities + 1, jobId));
+            List<String> opportunityIds = opportunityLines.opportunityIds();
+            List<OpportunityLine> lines = opportunityLines.lines();
+            if (opportunityIds.size() > maxOpportunities || opportunityIds.size() + lines.size() > maxRecords) {
+                logger.info("Job {} selects more than {} Opportunities or {} records, queueing it", jobId, maxOpportunities, maxRecords);
+                span.setAttribute("sync.queued", true);
+                return null;
+            }
+            // No records have been created yet, so a slow query is queued rather than risking the request timing out
+            if (System.nanoTime() - deadlineNanos > 0) {
+                logger.info("Job {} was not ready to create records within {} seconds, queueing it", jobId, timeoutSeconds);
+                span.setAttribute("sync.queued", true);
+                return null;
+            }
+            logger.info("Pricing {} Opportunities synchronously for Job ID: {}", opportunityIds.size(), jobId);
+            if (consolidateLines) {
+                lines = QuotePricing.consolidate(lines, volumeTiers);
+            }
+
+            // Create a Quote for each Opportunity and map them back to their OpportunityId
+            List<SObject> quotesToCreate = new ArrayList<>();
+            for (String opportunityId : opportunityIds) {
+                quotesToCreate.add(QuotePricing.quote(opportunityId));
+            }
+            List<SaveResult> quoteSaveResults = create(connection, quotesToCreate, "OpportunityId", jobId);
+            Map<String, String> opportunityToQuoteMap = new HashMap<>();
+            List<String> quoteIds = new ArrayList<>();
+            for (int i = 0; i < quoteSaveResults.size(); i++) {
+                if (quoteSaveResults.get(i).isSuccess()) {
+                    opportunityToQuoteMap.put(opportunityIds.get(i), quoteSaveResults.get(i).getId());
+                    quoteIds.add(quoteSaveResults.get(i).getId());
+                }
+            }
+
+            // Price and create the QuoteLineItems
+            List<SObject> quoteLineItemsToCreate = QuotePricing.quoteLineItems(lines, opportunityToQuoteMap, QuotePricing.discountForRegion("US"));
+            List<SaveResult> lineSaveResults = create(connection, quoteLineItemsToCreate, "QuoteId", jobId);
+
+            ledger.logSummary(jobId);
+            Result result = new Result();
+            result.quoteIds = quoteIds;
+            result.failures = quoteSaveResults.stream().filter(saveResult -> !saveResult.isSuccess()).count()
+                + lineSaveResults.stream().filter(saveResult -> !saveResult.isSuccess()).count();
+            span.setAttribute("salesforce.failures", result.failures);
+            return result;
+        } catch (Exception e) {
+            logger.error("Error pricing job {} synchronously: {}", jobId, e.getMessage(), e);
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR);
+            throw new CompletionException(e);
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Creates records in batches sized by the AdaptiveWriteController, one request at a time within the org's limit.
+     * Results are recorded in the job ledger.
+     * @param connection
+     * @param records
+     * @param sourceField field identifying the source record of each record in the job ledger
+     * @param jobId
+     * @return results in the same order as records
+     * @throws InterruptedException
+     */
+    private List<SaveResult> create(PartnerConnection connection, List<SObject> records, String sourceField, String jobId) throws InterruptedException {
+        List<SaveResult> allResults = new ArrayList<>();
+        if (records.isEmpty()) {
+            return allResults;
+        }
+        AdaptiveWriteController.OrgWriteLimit writeLimit = writeController.forOrg(connection.getConfig().getServiceEndpoint());
+        for (List<SObject> pending : writeController.partition(records)) {
+            // Records such as QuoteLineItems are built as they are accessed, so build the batch once
+            List<SObject> batch = List.copyOf(pending);
+            SaveResult[] results;
+            long startNanos = writeLimit.acquire();
+            try {
+                results = connection.create(batch.toArray(new SObject[0]));
+                writeLimit.release(startNanos, AdaptiveWriteController.isOverloaded(results, null));
+            } catch (Exception e) {
+                writeLimit.release(startNanos, AdaptiveWriteController.isOverloaded(null, e));
+                logger.error("Error creating batch: {}", e.getMessage(), e);
+                results = AdaptiveWriteController.failedResults(batch.size(), e);
+            }
+            ledger.record(jobId, batch, sourceField, results);
+            Collections.addAll(allResults, results);
+        }
+        return allResults;
+    }
+
+    /**
+     * Quotes created by a synchronous job
+     */
+    public static class Result {
+
+        public List<String> quoteIds;
+        public long failures;
+    }
+}
@@ -0,0 +1,415 @@
+package com.heroku.java.services;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Tracks queued and running jobs, their estimated and processed record counts and the records per second achieved by
+ * each worker, and recommends the number of worker dynos needed to drain the backlog within a target time.
+ * Also applies admission control to new jobs, limiting the jobs and estimated records queued per org and in total.
+ */
+@Service
+public class JobBacklog {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobBacklog.class);
+
+    private static final String PENDING_KEY = "jobs:pending";
+    private static final String RUNNING_KEY = "jobs:running";
+    private static final String ESTIMATED_RECORDS_KEY = "jobs:records:estimated";
+    private static final String PROCESSED_RECORDS_KEY = "jobs:records:processed";
+    private static final String ORG_KEY = "jobs:org";
+
+    // Counts the jobs and remaining records of the org and of all orgs, ignoring stale jobs, and adds the job to the
+    // pending backlog if it fits within the limits (0 is unlimited). Returns admitted, or the exceeded limit and the
+    // records that need to be written before the job would fit, separated by a colon.
+    private static final RedisScript<String> ADMIT_SCRIPT = RedisScript.of("""
+        local org, staleBefore, defaultRecords = ARGV[1], ARGV[2], tonumber(ARGV[3])
+        local jobRecords = tonumber(ARGV[4])
+        local maxOrgJobs, maxOrgRecords, maxJobs, maxRecords = tonumber(ARGV[5]), tonumber(ARGV[6]), tonumber(ARGV[7]), tonumber(ARGV[8])
+        local jobs, records, orgJobs, orgRecords = 0, 0, 0, 0
+        for _, queue in ipairs({ KEYS[1], KEYS[2] }) do
+            for _, id in ipairs(redis.call('zrangebyscore', queue, staleBefore, '+inf')) do
+                local estimated = tonumber(redis.call('hget', KEYS[3], id)) or defaultRecords
+                local remaining = math.max(0, estimated - (tonumber(redis.call('hget', KEYS[4], id)) or 0))
+                jobs, records = jobs + 1, records + remaining
+                if redis.call('hget', KEYS[5], id) == org then
+                    orgJobs, orgRecords = orgJobs + 1, orgRecords + remaining
+                end
+            end
+        end
+        local function rejected(limit, excess)
+            return limit .. ':' .. string.format('%d', math.max(0, math.floor(excess)))
+        end
+        if (maxOrgRecords > 0 and jobRecords > maxOrgRecords) or (maxRecords > 0 and jobRecords > maxRecords) then
+            return rejected('job-records', 0)
+        end
+        if maxOrgJobs > 0 and orgJobs >= maxOrgJobs then
+            return rejected('org-jobs', orgRecords / orgJobs)
+        end
+        if maxOrgRecords > 0 and orgRecords + jobRecords > maxOrgRecords then
+            return rejected('org-records', orgRecords + jobRecords - maxOrgRecords)
+        end
+        if maxJobs > 0 and jobs >= maxJobs then
+            return rejected('jobs', records / jobs)
+        end
+        if maxRecords > 0 and records + jobRecords > maxRecords then
+            return rejected('records', records + jobRecords - maxRecords)
+        end
+        redis.call('zadd', KEYS[1], ARGV[10], ARGV[9])
+        redis.call('hset', KEYS[5], ARGV[9], org)
+        if tonumber(ARGV[11]) > 0 then
+            redis.call('hset', KEYS[3], ARGV[9], ARGV[11])
+        end
+        return 'admitted'
+        """, String.class);
+
+    // Heroku dyno name (e.g. worker.1) or process when running locally
+    private static final String WORKER_ID = Optional.ofNullable(System.getenv("DYNO"))
+        .orElse("pid-" + ProcessHandle.current().pid());
+
+    @Autowired
+    private StringRedisTemplate redis;
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveRedis;
+
+    @Value("${scaling.target-drain-seconds:300}")
+    private long targetDrainSeconds;
+
+    @Value("${scaling.min-workers:1}")
+    private int minWorkers;
+
+    @Value("${scaling.max-workers:10}")
+    private int maxWorkers;
+
+    @Value("${scaling.window-minutes:5}")
+    private int windowMinutes;
+
+    @Value("${scaling.default-job-records:5000}")
+    private long defaultJobRecords;
+
+    @Value("${scaling.default-records-per-second:100}")
+    private double defaultRecordsPerSecond;
+
+    @Value("${scaling.stale-job-minutes:120}")
+    private long staleJobMinutes;
+
+    @Value("${admission.max-org-jobs:0}")
+    private long maxOrgJobs;
+
+    @Value("${admission.max-org-records:0}")
+    private long maxOrgRecords;
+
+    @Value("${admission.max-jobs:0}")
+    private long maxJobs;
+
+    @Value("${admission.max-records:0}")
+    private long maxRecords;
+
+    @Value("${admission.max-retry-after-seconds:600}")
+    private long maxRetryAfterSeconds;
+
+    /**
+     * Adds a job to the pending backlog as part of enqueuing it, if the org and overall backlog are within the
+     * admission limits once the job is added
+     * @param jobId
+     * @param instanceUrl org the job runs against
+     * @param estimatedRecords records the job is expected to write, 0 if not known until it runs
+     * @return whether the job was admitted and if not when to retry
+     */
+    public Mono<Admission> admit(String jobId, String instanceUrl, long estimatedRecords) {
+        long now = System.currentTimeMillis();
+        List<String> keys = List.of(PENDING_KEY, RUNNING_KEY, ESTIMATED_RECORDS_KEY, PROCESSED_RECORDS_KEY, ORG_KEY);
+        List<String> args = List.of(
+            URI.create(instanceUrl).getHost(),
+            String.valueOf(now - Duration.ofMinutes(staleJobMinutes).toMillis()),
+            String.valueOf(defaultJobRecords),
+            String.valueOf(estimatedRecords > 0 ? estimatedRecords : defaultJobRecords),
+            String.valueOf(maxOrgJobs),
+            String.valueOf(maxOrgRecords),
+            String.valueOf(maxJobs),
+            String.valueOf(maxRecords),
+            jobId,
+            String.valueOf(now),
+            String.valueOf(estimatedRecords));
+        return reactiveRedis.execute(ADMIT_SCRIPT, keys, args).next()
+            .flatMap(result -> {
+                if (result.equals("admitted")) {
+                    return Mono.just(Admission.admitted());
+                }
+                String limit = result.substring(0, result.indexOf(':'));
+                long excessRecords = Long.parseLong(result.substring(result.indexOf(':') + 1));
+                return recordsPerSecond().map(recordsPerSecond -> {
+                    // Time for the workers to write the records that need to complete before the job fits
+                    long retryAfter = (long) Math.ceil(excessRecords / recordsPerSecond);
+                    logger.info("Job {} not admitted, {} limit reached, retry after {}s", jobId, limit, retryAfter);
+                    return Admission.rejected(limit, Math.max(1, Math.min(maxRetryAfterSeconds, retryAfter)));
+                });
+            });
+    }
+
+    /**
+     * Removes an admitted job that could not be enqueued
+     * @param jobId
+     * @return
+     */
+    public Mono<Void> withdraw(String jobId) {
+        return reactiveRedis.opsForZSet().remove(PENDING_KEY, jobId)
+            .then(reactiveRedis.opsForHash().remove(ESTIMATED_RECORDS_KEY, jobId))
+            .then(reactiveRedis.opsForHash().remove(ORG_KEY, jobId))
+            .then();
+    }
+
+    /**
+     * Moves a job claimed by a worker from pending to running
+     * @param jobId
+     */
+    public void started(String jobId) {
+        try {
+            redis.opsForZSet().remove(PENDING_KEY, jobId);
+            redis.opsForZSet().add(RUNNING_KEY, jobId, System.currentTimeMillis());
+        } catch (Exception e) {
+            logger.warn("Error recording start of job {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    /**
+     * Moves a job handed off by a worker that is shutting down back to pending, its estimate and progress are kept
+     * @param jobId
+     */
+    public void requeued(String jobId) {
+        try {
+            redis.opsForZSet().remove(RUNNING_KEY, jobId);
+            redis.opsForZSet().add(PENDING_KEY, jobId, System.currentTimeMillis());
+        } catch (Exception e) {
+            logger.warn("Error recording hand off of job {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the number of records the job will write once known (e.g. after extraction)
+     * @param jobId
+     * @param records
+     */
+    public void estimate(String jobId, long records) {
+        try {
+            redis.opsForHash().put(ESTIMATED_RECORDS_KEY, jobId, String.valueOf(records));
+        } catch (Exception e) {
+            logger.warn("Error recording estimate of job {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    /**
+     * Counts records written by the job towards its progress and this worker's throughput
+     * @param jobId
+     * @param records
+     */
+    public void progress(String jobId, long records) {
+        try {
+            redis.opsForHash().increment(PROCESSED_RECORDS_KEY, jobId, records);
+            String throughputKey = throughputKey(System.currentTimeMillis() / 60_000);
+            redis.opsForHash().increment(throughputKey, WORKER_ID, records);
+            redis.expire(throughputKey, Duration.ofMinutes(windowMinutes + 1L));
+        } catch (Exception e) {
+            logger.warn("Error recording progress of job {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    /**
+     * Removes a finished, cancelled or duplicate job from the backlog
+     * @param jobId
+     */
+    public void finished(String jobId) {
+        try {
+            remove(List.of(jobId));
+        } catch (Exception e) {
+            logger.warn("Error recording end of job {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    /**
+     * Computes the backlog and the number of workers needed to drain it within the target time.
+     * Jobs pending or running for longer than the stale job time (e.g. lost when a worker crashed) are dropped.
+     * @return
+     */
+    public Mono<ScalingRecommendation> recommend() {
+        long now = System.currentTimeMillis();
+        Range<Double> staleRange = Range.closed(0.0, (double) (now - Duration.ofMinutes(staleJobMinutes).toMillis()));
+        Mono<Void> dropStale = reactiveRedis.opsForZSet().rangeByScore(PENDING_KEY, staleRange)
+            .concatWith(reactiveRedis.opsForZSet().rangeByScore(RUNNING_KEY, staleRange))
+            .collectList()
+            .flatMap(stale -> {
+                if (stale.isEmpty()) {
+                    return Mono.empty();
+                }
+                logger.info("Dropping {} stale jobs from the backlog", stale.size());
+                return removeReactive(stale);
+            });
+        Mono<List<String>> pending = reactiveRedis.opsForZSet().range(PENDING_KEY, Range.closed(0L, -1L)).collectList();
+        Mono<List<String>> running = reactiveRedis.opsForZSet().range(RUNNING_KEY, Range.closed(0L, -1L)).collectList();
+        return dropStale.then(Mono.zip(pending, running, recordsByWorker(now)))
+            .flatMap(backlog -> {
+                ScalingRecommendation recommendation = new ScalingRecommendation();
+                List<String> jobIds = new ArrayList<>(backlog.getT1());
+                jobIds.addAll(backlog.getT2());
+                recommendation.pendingJobs = backlog.getT1().size();
+                recommendation.runningJobs = backlog.getT2().size();
+
+                // Records per second per worker over the last full minutes
+                Map<String, Long> recordsByWorker = backlog.getT3();
+                recommendation.activeWorkers = recordsByWorker.size();
+                long windowRecords = recordsByWorker.values().stream().mapToLong(Long::longValue).sum();
+                recommendation.recordsPerSecondPerWorker = recordsByWorker.isEmpty() || windowRecords == 0
+                    ? defaultRecordsPerSecond
+                    : (double) windowRecords / (windowMinutes * 60L) / recordsByWorker.size();
+                recommendation.targetDrainSeconds = targetDrainSeconds;
+                return remainingRecords(jobIds).map(remaining -> {
+                    recommendation.estimatedRemainingRecords = remaining;
+                    long needed = (long) Math.ceil(remaining / (recommendation.recordsPerSecondPerWorker * targetDrainSeconds));
+                    // Keep a worker while there are jobs, messages published with no worker subscribed are lost
+                    needed = Math.max(needed, jobIds.isEmpty() ? 0 : 1);
+                    recommendation.recommendedWorkers = (int) Math.max(minWorkers, Math.min(maxWorkers, needed));
+                    return recommendation;
+                });
+            });
+    }
+
+    /**
+     * Remaining records of the jobs, jobs without an estimate yet count as the default job size
+     * @param jobIds
+     * @return
+     */
+    private Mono<Long> remainingRecords(List<String> jobIds) {
+        if (jobIds.isEmpty()) {
+            return Mono.just(0L);
+        }
+        List<Object> fields = new ArrayList<>(jobIds);
+        return Mono.zip(
+                reactiveRedis.<Object, Object>opsForHash().multiGet(ESTIMATED_RECORDS_KEY, fields),
+                reactiveRedis.<Object, Object>opsForHash().multiGet(PROCESSED_RECORDS_KEY, fields))
+            .map(records -> {
+                long remaining = 0;
+                for (int i = 0; i < jobIds.size(); i++) {
+                    Object estimated = records.getT1().get(i);
+                    Object processed = records.getT2().get(i);
+                    long jobRecords = estimated == null ? defaultJobRecords : Long.parseLong(estimated.toString());
+                    long jobProcessed = processed == null ? 0 : Long.parseLong(processed.toString());
+                    remaining += Math.max(0, jobRecords - jobProcessed);
+                }
+                return remaining;
+            });
+    }
+
+    /**
+     * Records written by each worker over the last full minutes
+     * @param now
+     * @return
+     */
+    private Mono<Map<String, Long>> recordsByWorker(long now) {
+        long currentMinute = now / 60_000;
+        return Flux.range(1, windowMinutes)
+            .concatMap(minutesAgo -> reactiveRedis.opsForHash().entries(throughputKey(currentMinute - minutesAgo)))
+            .collect(HashMap::new, (recordsByWorker, entry) ->
+                recordsByWorker.merge(entry.getKey().toString(), Long.parseLong(entry.getValue().toString()), Long::sum));
+    }
+
+    private Mono<Void> removeReactive(List<String> jobIds) {
+        Object[] ids = jobIds.toArray();
+        return reactiveRedis.opsForZSet().remove(PENDING_KEY, ids)
+            .then(reactiveRedis.opsForZSet().remove(RUNNING_KEY, ids))
+            .then(reactiveRedis.opsForHash().remove(ESTIMATED_RECORDS_KEY, ids))
+            .then(reactiveRedis.opsForHash().remove(PROCESSED_RECORDS_KEY, ids))
+            .then(reactiveRedis.opsForHash().remove(ORG_KEY, ids))
+            .then();
+    }
+
+    private void remove(List<String> jobIds) {
+        Object[] ids = jobIds.toArray();
+        redis.opsForZSet().remove(PENDING_KEY, ids);
+        redis.opsForZSet().remove(RUNNING_KEY, ids);
+        redis.opsForHash().delete(ESTIMATED_RECORDS_KEY, ids);
+        redis.opsForHash().delete(PROCESSED_RECORDS_KEY, ids);
+        redis.opsForHash().delete(ORG_KEY, ids);
+    }
+
+    /**
+     * Records per second written by all workers over the last full minutes, or the configured default per worker
+     * if none were written
+     * @return
+     */
+    private Mono<Double> recordsPerSecond() {
+        long currentMinute = System.currentTimeMillis() / 60_000;
+        return Flux.range(1, windowMinutes)
+            .flatMap(minutesAgo -> reactiveRedis.opsForHash().values(throughputKey(currentMinute - minutesAgo)))
+            .map(records -> Long.parseLong(records.toString()))
+            .reduce(0L, Long::sum)
+            .map(windowRecords -> windowRecords == 0 ? defaultRecordsPerSecond : (double) windowRecords / (windowMinutes * 60L));
+    }
+
+    private static String throughputKey(long minute) {
+        return "jobs:throughput:" + minute;
+    }
+
+    /**
+     * Outcome of admission control for a new job
+     */
+    public static class Admission {
+        public final boolean admitted;
+        // Limit that was reached: org-jobs, org-records, jobs, records, or job-records if the job alone exceeds a limit
+        public final String limit;
+        public final long retryAfterSeconds;
+
+        private Admission(boolean admitted, String limit, long retryAfterSeconds) {
+            this.admitted = admitted;
+            this.limit = limit;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        static Admission admitted() {
+            return new Admission(true, null, 0);
+        }
+
+        static Admission rejected(String limit, long retryAfterSeconds) {
+            return new Admission(false, limit, retryAfterSeconds);
+        }
+
+        public boolean exceedsLimit() {
+            return "job-records".equals(limit);
+        }
+    }
+
+    // Schema to define the scaling endpoint response
+    @Schema(description = "Job backlog and the recommended number of worker dynos to drain it within the target time.")
+    public static class ScalingRecommendation {
+        @Schema(example = "3", description = "Jobs enqueued and not yet started by a worker")
+        public int pendingJobs;
+        @Schema(example = "2", description = "Jobs being processed by workers")
+        public int runningJobs;
+        @Schema(example = "120000", description = "Estimated records still to be written by pending and running jobs")
+        public long estimatedRemainingRecords;
+        @Schema(example = "2", description = "Workers that wrote records during the measurement window")
+        public int activeWorkers;
+        @Schema(example = "150.5", description = "Records written per second by each active worker, or the configured default if none are active")
+        public double recordsPerSecondPerWorker;
+        @Schema(example = "300", description = "Time within which the backlog should be drained")
+        public long targetDrainSeconds;
+        @Schema(example = "3", description = "Worker dynos needed to drain the backlog within the target time, within the configured minimum and maximum")
+        public int recommendedWorkers;
+    }
+}
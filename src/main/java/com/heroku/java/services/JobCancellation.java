@@ -0,0 +1,88 @@
+package com.heroku.java.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cancellation flags for jobs. Set by the web process and checked by workers between units of work
+ * (query pages, Bulk job polls and create batches), so a cancelled job stops before making further API calls.
+ */
+@Service
+public class JobCancellation {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobCancellation.class);
+
+    private static final Duration TTL = Duration.ofDays(1);
+
+    @Autowired
+    private StringRedisTemplate redis;
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveRedis;
+
+    // Jobs known to be cancelled, saves a Redis round trip for each remaining batch
+    private final Set<String> cancelled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Flags the job as cancelled
+     * @param jobId
+     * @return completes once the flag is set
+     */
+    public Mono<Boolean> cancel(String jobId) {
+        return reactiveRedis.opsForValue().set(cancelKey(jobId), String.valueOf(System.currentTimeMillis()), TTL)
+            .doOnSuccess(set -> logger.info("Job {} flagged as cancelled", jobId));
+    }
+
+    /**
+     * Returns true if the job has been cancelled, errors reading the flag are logged and treated as not cancelled
+     * @param jobId
+     * @return
+     */
+    public boolean isCancelled(String jobId) {
+        if (cancelled.contains(jobId)) {
+            return true;
+        }
+        try {
+            if (Boolean.TRUE.equals(redis.hasKey(cancelKey(jobId)))) {
+                cancelled.add(jobId);
+                return true;
+            }
+        } catch (Exception e) {
+            logger.warn("Error checking cancellation of job {}: {}", jobId, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Throws JobCancelledException if the job has been cancelled
+     * @param jobId
+     * @param progress progress reached by the job so far
+     */
+    public void throwIfCancelled(String jobId, double progress) {
+        if (isCancelled(jobId)) {
+            throw new JobCancelledException(jobId, progress);
+        }
+    }
+
+    /**
+     * Releases local state once the worker has finished with the job
+     * @param jobId
+     */
+    public void forget(String jobId) {
+        cancelled.remove(jobId);
+    }
+
+    private static String cancelKey(String jobId) {
+        return "job:cancel:" + jobId;
+    }
+}
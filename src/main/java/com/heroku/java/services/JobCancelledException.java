@@ -0,0 +1,27 @@
+package com.heroku.java.services;
+
+/**
+ * Thrown by a worker when it finds the job it is processing has been cancelled, carries the progress
+ * reached so the final progress event can report the partial result
+ */
+public class JobCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String jobId;
+    private final double progress;
+
+    public JobCancelledException(String jobId, double progress) {
+        super("Job " + jobId + " was cancelled");
+        this.jobId = jobId;
+        this.progress = progress;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public double getProgress() {
+        return progress;
+    }
+}
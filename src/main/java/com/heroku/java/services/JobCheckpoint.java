@@ -0,0 +1,111 @@
+package com.heroku.java.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Progress of a job handed off by a worker that was shut down, so the worker that resumes the job does not
+ * create Quotes and QuoteLineItems again. Holds the Quote created for each Opportunity (empty if it failed and was
+ * recorded in the ledger) and the lines QuoteLineItems were written for by QuotePricing.lineKey (OpportunityLineItem
+ * Id), so lines are matched however they are ordered when the job is extracted again.
+ */
+@Service
+public class JobCheckpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobCheckpoint.class);
+
+    private static final Duration TTL = Duration.ofDays(1);
+
+    private static final int WRITE_CHUNK_SIZE = 10_000;
+
+    @Autowired
+    private StringRedisTemplate redis;
+
+    /**
+     * Adds Quotes created (or failed, with an empty Id) for Opportunities to the checkpoint
+     * @param jobId
+     * @param opportunityToQuoteMap
+     */
+    public void saveQuotes(String jobId, Map<String, String> opportunityToQuoteMap) {
+        putAll(quotesKey(jobId), opportunityToQuoteMap);
+        logger.info("Checkpointed {} Quotes for job {}", opportunityToQuoteMap.size(), jobId);
+    }
+
+    /**
+     * Adds written (or failed) QuoteLineItems to the checkpoint
+     * @param jobId
+     * @param lineKeys QuotePricing.lineKey of the lines of records sent by completed create calls
+     */
+    public void saveLines(String jobId, List<String> lineKeys) {
+        for (int start = 0; start < lineKeys.size(); start += WRITE_CHUNK_SIZE) {
+            redis.opsForSet().add(linesKey(jobId), lineKeys.subList(start, Math.min(start + WRITE_CHUNK_SIZE, lineKeys.size())).toArray(new String[0]));
+        }
+        redis.expire(linesKey(jobId), TTL);
+        logger.info("Checkpointed {} QuoteLineItems for job {}", lineKeys.size(), jobId);
+    }
+
+    /**
+     * Quotes created for Opportunities by earlier attempts of the job
+     * @param jobId
+     * @return Quote Id by OpportunityId, empty if creating the Quote failed
+     */
+    public Map<String, String> quotes(String jobId) {
+        Map<String, String> quotes = new HashMap<>();
+        redis.opsForHash().entries(quotesKey(jobId)).forEach((opportunityId, quoteId) -> quotes.put(opportunityId.toString(), quoteId.toString()));
+        return quotes;
+    }
+
+    /**
+     * Lines QuoteLineItems were written for by earlier attempts of the job
+     * @param jobId
+     * @return QuotePricing.lineKey of each line
+     */
+    public Set<String> lines(String jobId) {
+        Set<String> lines = redis.opsForSet().members(linesKey(jobId));
+        return lines == null ? Set.of() : lines;
+    }
+
+    /**
+     * Removes the checkpoint once the job has finished
+     * @param jobId
+     */
+    public void delete(String jobId) {
+        try {
+            redis.delete(List.of(quotesKey(jobId), linesKey(jobId)));
+        } catch (Exception e) {
+            logger.warn("Error removing checkpoint of job {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    private void putAll(String key, Map<String, String> entries) {
+        Map<String, String> chunk = new HashMap<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            chunk.put(entry.getKey(), entry.getValue());
+            if (chunk.size() == WRITE_CHUNK_SIZE) {
+                redis.opsForHash().putAll(key, chunk);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            redis.opsForHash().putAll(key, chunk);
+        }
+        redis.expire(key, TTL);
+    }
+
+    private static String quotesKey(String jobId) {
+        return "job:checkpoint:" + jobId + ":quotes";
+    }
+
+    private static String linesKey(String jobId) {
+        return "job:checkpoint:" + jobId + ":line-keys";
+    }
+}
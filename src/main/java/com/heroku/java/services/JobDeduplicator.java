@@ -0,0 +1,183 @@
+package com.heroku.java.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Single-flight deduplication of jobs. A job reserves a flight key (org and normalized SOQL WHERE clause) when it is
+ * enqueued, identical requests made while it runs attach to its job ID instead of starting new work. Workers claim each
+ * job ID before running it, so a message received by several workers runs once, and skip jobs that duplicate a running job.
+ */
+@Service
+public class JobDeduplicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobDeduplicator.class);
+
+    // Deletes the key only if it still holds the given job ID
+    private static final RedisScript<Long> RELEASE_SCRIPT = RedisScript.of(
+        "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end", Long.class);
+
+    @Autowired
+    private StringRedisTemplate redis;
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveRedis;
+
+    @Value("${dedupe.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    /**
+     * Key identifying identical work, the org instance host, whether lines are consolidated and the WHERE clause with
+     * whitespace collapsed and text outside string literals lower cased
+     * @param instanceUrl
+     * @param soqlWhereClause
+     * @param consolidateLines
+     * @return
+     */
+    public String flightKey(String instanceUrl, String soqlWhereClause, boolean consolidateLines) {
+        String identity = URI.create(instanceUrl).getHost() + (consolidateLines ? "\nconsolidated" : "") + "\n" + normalize(soqlWhereClause);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            return "job:flight:" + HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reserves the flight key for the job unless an identical job is running
+     * @param flightKey
+     * @param jobId
+     * @return the job ID now running the work, jobId if the reservation was made
+     */
+    public Mono<String> reserve(String flightKey, String jobId) {
+        return reactiveRedis.opsForValue().setIfAbsent(flightKey, jobId, ttl())
+            .flatMap(reserved -> reserved
+                ? Mono.just(jobId)
+                : reactiveRedis.opsForValue().get(flightKey).defaultIfEmpty(jobId));
+    }
+
+    /**
+     * Releases a reservation made by reserve, used when the job could not be enqueued
+     * @param flightKey
+     * @param jobId
+     * @return
+     */
+    public Mono<Long> cancelReservation(String flightKey, String jobId) {
+        return reactiveRedis.execute(RELEASE_SCRIPT, List.of(flightKey), List.of(jobId)).next();
+    }
+
+    /**
+     * Claims a job for this worker
+     * @param jobId
+     * @return false if another worker has already claimed the job
+     */
+    public boolean claim(String jobId) {
+        boolean claimed = Boolean.TRUE.equals(redis.opsForValue().setIfAbsent("job:claim:" + jobId, String.valueOf(ProcessHandle.current().pid()), ttl()));
+        if (!claimed) {
+            logger.info("Job {} already claimed by another worker", jobId);
+        }
+        return claimed;
+    }
+
+    /**
+     * Releases the claim on a job handed off by a worker that is shutting down, so another worker can resume it
+     * @param jobId
+     */
+    public void unclaim(String jobId) {
+        redis.delete("job:claim:" + jobId);
+    }
+
+    /**
+     * Joins the flight for the job, reserving it if the job was not deduplicated on enqueue (e.g. the reservation expired)
+     * @param flightKey
+     * @param jobId
+     * @return the job ID running the work, if not jobId the job is a duplicate and is attached to it
+     */
+    public String join(String flightKey, String jobId) {
+        if (Boolean.TRUE.equals(redis.opsForValue().setIfAbsent(flightKey, jobId, ttl()))) {
+            return jobId;
+        }
+        String runningJobId = redis.opsForValue().get(flightKey);
+        if (runningJobId == null || runningJobId.equals(jobId)) {
+            return jobId;
+        }
+        redis.opsForValue().set(aliasKey(jobId), runningJobId, ttl());
+        logger.info("Job {} duplicates running job {}, attached to it", jobId, runningJobId);
+        return runningJobId;
+    }
+
+    /**
+     * Ends the flight once the job has finished so identical requests start new work
+     * @param flightKey
+     * @param jobId
+     */
+    public void leave(String flightKey, String jobId) {
+        try {
+            redis.execute(RELEASE_SCRIPT, List.of(flightKey), jobId);
+        } catch (Exception e) {
+            logger.warn("Error releasing flight of job {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    /**
+     * Job ID a duplicate job was attached to by a worker
+     * @param jobId
+     * @return the running job ID, or jobId if it was not a duplicate
+     */
+    public Mono<String> resolve(String jobId) {
+        return reactiveRedis.opsForValue().get(aliasKey(jobId)).defaultIfEmpty(jobId);
+    }
+
+    private Duration ttl() {
+        return Duration.ofMinutes(ttlMinutes);
+    }
+
+    private static String aliasKey(String jobId) {
+        return "job:alias:" + jobId;
+    }
+
+    /**
+     * Collapses whitespace and lower cases text outside single quoted string literals
+     * @param soqlWhereClause
+     * @return
+     */
+    static String normalize(String soqlWhereClause) {
+        StringBuilder normalized = new StringBuilder();
+        boolean inLiteral = false;
+        boolean pendingSpace = false;
+        String clause = soqlWhereClause == null ? "" : soqlWhereClause.trim();
+        for (int i = 0; i < clause.length(); i++) {
+            char c = clause.charAt(i);
+            if (!inLiteral && Character.isWhitespace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            if (c == '\'' && (i == 0 || clause.charAt(i - 1) != '\\')) {
+                inLiteral = !inLiteral;
+            }
+            normalized.append(inLiteral ? c : Character.toLowerCase(c));
+        }
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package com.heroku.java.services;
+
+/**
+ * Thrown by a worker that is shutting down before it has finished the job it is processing, the job is checkpointed
+ * with the create batches that completed before it is re-queued
+ */
+public class JobHandoffException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String jobId;
+
+    public JobHandoffException(String jobId) {
+        super("Job " + jobId + " was handed off by a worker shutting down");
+        this.jobId = jobId;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+}
@@ -0,0 +1,108 @@
+package com.heroku.java.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resumes jobs handed off by workers that were shut down. Handed off jobs are pushed to the JobMessage.HANDOFF_QUEUE
+ * list rather than published, so they are kept while no worker is running (e.g. all workers restarting on a deploy)
+ * and each is popped by one worker. Polls with a blocking pop from its own thread until the worker starts draining.
+ */
+@Service
+@Profile("worker")
+public class JobHandoffPoller implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobHandoffPoller.class);
+
+    @Autowired
+    private StringRedisTemplate redis;
+
+    @Autowired
+    private PricingEngineWorkerService worker;
+
+    @Autowired
+    private WorkerDrain drain;
+
+    @Value("${worker.handoff.poll-seconds:2}")
+    private long pollSeconds;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "job-handoff");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean running;
+    private Thread poller;
+
+    @Override
+    public synchronized void start() {
+        running = true;
+        poller = new Thread(this::poll, "job-handoff-poller");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    private void poll() {
+        while (running && !drain.isDraining()) {
+            try {
+                String json = redis.opsForList().rightPop(JobMessage.HANDOFF_QUEUE, Duration.ofSeconds(pollSeconds));
+                if (json == null) {
+                    continue;
+                }
+                JobMessage jobMessage = JobMessage.fromJson(json.getBytes(StandardCharsets.UTF_8));
+                if (!drain.accept(jobMessage.jobId)) {
+                    // Popped as the worker started draining, put it back for the next worker
+                    redis.opsForList().rightPush(JobMessage.HANDOFF_QUEUE, json);
+                    return;
+                }
+                logger.info("Worker resuming job {} handed off {} times", jobMessage.jobId, jobMessage.handoffs);
+                executor.execute(() -> worker.run(jobMessage));
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                logger.warn("Error polling for handed off jobs: {}", e.getMessage());
+                try {
+                    Thread.sleep(pollSeconds * 1000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        // Wait for a pop in progress so a job is not taken from the queue once the worker is draining
+        try {
+            poller.join((pollSeconds + 1) * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Stops with the listener container, before WorkerDrain waits for the running jobs
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+}
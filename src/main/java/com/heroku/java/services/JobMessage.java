@@ -0,0 +1,102 @@
+package com.heroku.java.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message posted to the quoteQueue and dataQueue channels, carries the job ID, the job specific body
+ * (e.g. SOQL WHERE clause) and the W3C trace context of the web request that enqueued the job.
+ * Workers that are shut down while running a job push its message to the HANDOFF_QUEUE list to hand the job off
+ * (see JobHandoffPoller).
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class JobMessage {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final TextMapGetter<JobMessage> TRACE_CONTEXT_GETTER = new TextMapGetter<>() {
+        @Override
+        public Iterable<String> keys(JobMessage carrier) {
+            return carrier.traceContext.keySet();
+        }
+
+        @Override
+        public String get(JobMessage carrier, String key) {
+            return carrier == null ? null : carrier.traceContext.get(key);
+        }
+    };
+
+    public static final String EXTRACTION_SOAP = "soap";
+    public static final String EXTRACTION_BULK = "bulk";
+
+    // Redis list of jobs handed off by workers shutting down, kept until a worker pops them
+    public static final String HANDOFF_QUEUE = "quoteQueue:handoffs";
+
+    public String jobId;
+    public String body;
+    public String extractionMode = EXTRACTION_SOAP;
+    // Merge lines for the same PricebookEntry per Quote before pricing
+    public boolean consolidateLines;
+    public long enqueuedAt;
+    // Times the job has been handed off by a worker shutting down and re-queued
+    public int handoffs;
+    public Map<String, String> traceContext = new HashMap<>();
+
+    public JobMessage() {
+    }
+
+    public JobMessage(String jobId, String body) {
+        this.jobId = jobId;
+        this.body = body;
+        this.enqueuedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds the current trace context to the message so worker spans join the trace of the enqueuing request
+     * @param openTelemetry
+     * @return
+     */
+    public JobMessage withTraceContext(OpenTelemetry openTelemetry) {
+        openTelemetry.getPropagators().getTextMapPropagator()
+            .inject(Context.current(), this, (carrier, key, value) -> carrier.traceContext.put(key, value));
+        return this;
+    }
+
+    /**
+     * Extracts the trace context of the enqueuing request
+     * @param openTelemetry
+     * @return
+     */
+    public Context traceContext(OpenTelemetry openTelemetry) {
+        return openTelemetry.getPropagators().getTextMapPropagator().extract(Context.root(), this, TRACE_CONTEXT_GETTER);
+    }
+
+    /**
+     * Milliseconds the message spent waiting between being enqueued and received
+     * @return
+     */
+    public long queueWaitMillis() {
+        return Math.max(0, System.currentTimeMillis() - enqueuedAt);
+    }
+
+    public String toJson() {
+        try {
+            return objectMapper.writeValueAsString(this);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Unable to serialize job message", e);
+        }
+    }
+
+    public static JobMessage fromJson(byte[] json) throws IOException {
+        return objectMapper.readValue(json, JobMessage.class);
+    }
+}
@@ -0,0 +1,250 @@
+package com.heroku.java.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.sobject.SObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the outcome of each create call made by a job to a Redis stream as batches complete.
+ * Created Ids and failures grouped by status code can then be downloaded to reconcile or drive follow up jobs.
+ */
+@Service
+public class JobResultLedger {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobResultLedger.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final int READ_PAGE_SIZE = 500;
+
+    @Autowired
+    private StringRedisTemplate redis;
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveRedis;
+
+    @Value("${ledger.ttl-days:7}")
+    private int ttlDays;
+
+    /**
+     * Appends the results of a create call to the jobs ledger and updates its counts
+     * @param jobId
+     * @param batch records passed to the create call
+     * @param sourceField field on each record identifying the source record (e.g. OpportunityId)
+     * @param results results in the same order as the batch
+     */
+    public void record(String jobId, List<SObject> batch, String sourceField, SaveResult[] results) {
+        String sObjectType = batch.get(0).getType();
+        List<String> created = new ArrayList<>();
+        Map<String, List<Map<String, String>>> failures = new TreeMap<>();
+        for (int i = 0; i < results.length; i++) {
+            SaveResult result = results[i];
+            if (result.isSuccess()) {
+                created.add(result.getId());
+            } else {
+                String statusCode = result.getErrors().length > 0 ? String.valueOf(result.getErrors()[0].getStatusCode()) : "UNKNOWN";
+                String message = result.getErrors().length > 0 ? result.getErrors()[0].getMessage() : "";
+                Object sourceId = batch.get(i).getField(sourceField);
+                failures.computeIfAbsent(statusCode, key -> new ArrayList<>())
+                    .add(Map.of("sourceId", String.valueOf(sourceId), "message", String.valueOf(message)));
+            }
+        }
+        try {
+            Map<String, String> entry = Map.of(
+                "type", sObjectType,
+                "created", String.join(",", created),
+                "failures", objectMapper.writeValueAsString(failures));
+            String streamKey = streamKey(jobId);
+            String summaryKey = summaryKey(jobId);
+            long ttlSeconds = Duration.ofDays(ttlDays).toSeconds();
+            // Sent in one round trip per batch
+            redis.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                stringConnection.xAdd(streamKey, entry);
+                stringConnection.hIncrBy(summaryKey, sObjectType + ".created", created.size());
+                if (created.size() < results.length) {
+                    stringConnection.hIncrBy(summaryKey, sObjectType + ".failed", results.length - created.size());
+                }
+                for (Map.Entry<String, List<Map<String, String>>> failure : failures.entrySet()) {
+                    stringConnection.hIncrBy(summaryKey, sObjectType + ".failed." + failure.getKey(), failure.getValue().size());
+                }
+                stringConnection.expire(streamKey, ttlSeconds);
+                stringConnection.expire(summaryKey, ttlSeconds);
+                return null;
+            });
+        } catch (Exception e) {
+            logger.error("Error recording results for job {}: {}", jobId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Marks the job as cancelled in its summary, records created before cancellation remain in the ledger
+     * @param jobId
+     */
+    public void recordCancelled(String jobId) {
+        try {
+            String summaryKey = summaryKey(jobId);
+            redis.opsForHash().put(summaryKey, "job.cancelled", "1");
+            redis.expire(summaryKey, Duration.ofDays(ttlDays));
+        } catch (Exception e) {
+            logger.error("Error recording cancellation of job {}: {}", jobId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Marks the records created by the job as rolled back in its summary
+     * @param jobId
+     * @param sObjectType
+     * @param deleted records deleted
+     */
+    public void recordRolledBack(String jobId, String sObjectType, long deleted) {
+        try {
+            String summaryKey = summaryKey(jobId);
+            redis.opsForHash().put(summaryKey, sObjectType + ".rolledBack", String.valueOf(deleted));
+            redis.expire(summaryKey, Duration.ofDays(ttlDays));
+        } catch (Exception e) {
+            logger.error("Error recording rollback of job {}: {}", jobId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Ids of the records of the given type created by the job, in the order they were created
+     * @param jobId
+     * @param sObjectType
+     * @return
+     */
+    public List<String> createdIds(String jobId, String sObjectType) {
+        List<String> createdIds = new ArrayList<>();
+        Range<String> range = Range.unbounded();
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = redis.opsForStream().range(streamKey(jobId), range, Limit.limit().count(READ_PAGE_SIZE));
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> value = record.getValue();
+                String created = value.get("created").toString();
+                if (sObjectType.equals(value.get("type")) && !created.isEmpty()) {
+                    createdIds.addAll(Arrays.asList(created.split(",")));
+                }
+            }
+            if (records.size() < READ_PAGE_SIZE) {
+                break;
+            }
+            range = Range.rightUnbounded(Range.Bound.exclusive(records.get(records.size() - 1).getId().getValue()));
+        }
+        return createdIds;
+    }
+
+    /**
+     * Counts of created and failed records (by status code) for the job
+     * @param jobId
+     * @return
+     */
+    public Map<String, Long> summary(String jobId) {
+        Map<String, Long> summary = new TreeMap<>();
+        redis.opsForHash().entries(summaryKey(jobId))
+            .forEach((field, count) -> summary.put(field.toString(), Long.parseLong(count.toString())));
+        return summary;
+    }
+
+    /**
+     * Logs a single summary line for the job
+     * @param jobId
+     */
+    public void logSummary(String jobId) {
+        try {
+            logger.info("Job {} results: {}", jobId, summary(jobId));
+        } catch (Exception e) {
+            logger.error("Error reading results of job {}: {}", jobId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns true if any results have been recorded for the job
+     * @param jobId
+     * @return
+     */
+    public Mono<Boolean> exists(String jobId) {
+        return reactiveRedis.hasKey(summaryKey(jobId));
+    }
+
+    /**
+     * Count of records of a type created by the job
+     * @param jobId
+     * @param sObjectType
+     * @return
+     */
+    public Mono<Long> createdCount(String jobId, String sObjectType) {
+        return reactiveRedis.<String, String>opsForHash().get(summaryKey(jobId), sObjectType + ".created")
+            .map(Long::parseLong)
+            .defaultIfEmpty(0L);
+    }
+
+    /**
+     * Writes the ledger as gzip compressed JSON lines, a summary line followed by one line per create call
+     * @param jobId
+     * @param outputStream
+     * @throws IOException
+     */
+    public void writeTo(String jobId, OutputStream outputStream) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(outputStream);
+        writeLine(gzip, Map.of("jobId", jobId, "summary", summary(jobId)));
+        Range<String> range = Range.unbounded();
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = redis.opsForStream().range(streamKey(jobId), range, Limit.limit().count(READ_PAGE_SIZE));
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> value = record.getValue();
+                String created = value.get("created").toString();
+                Map<String, Object> line = new LinkedHashMap<>();
+                line.put("type", value.get("type"));
+                line.put("created", created.isEmpty() ? List.of() : Arrays.asList(created.split(",")));
+                line.put("failures", objectMapper.readValue(value.get("failures").toString(), new TypeReference<Map<String, Object>>() {}));
+                writeLine(gzip, line);
+            }
+            if (records.size() < READ_PAGE_SIZE) {
+                break;
+            }
+            range = Range.rightUnbounded(Range.Bound.exclusive(records.get(records.size() - 1).getId().getValue()));
+        }
+        gzip.finish();
+    }
+
+    private void writeLine(OutputStream outputStream, Object line) throws IOException {
+        outputStream.write(objectMapper.writeValueAsBytes(line));
+        outputStream.write('\n');
+    }
+
+    private static String streamKey(String jobId) {
+        return "job:ledger:" + jobId;
+    }
+
+    private static String summaryKey(String jobId) {
+        return "job:ledger:" + jobId + ":summary";
+    }
+}
@@ -0,0 +1,26 @@
+package com.heroku.java.services;
+
+/**
+ * Pricing inputs extracted from an OpportunityLineItem, independent of how it was queried (SOAP or Bulk API)
+ */
+public class OpportunityLine {
+
+    // OpportunityLineItem Id, null for lines merged by QuotePricing.consolidate
+    public final String id;
+    public final String opportunityId;
+    public final String pricebookEntryId;
+    public final double quantity;
+    public final double unitPrice;
+
+    public OpportunityLine(String id, String opportunityId, String pricebookEntryId, double quantity, double unitPrice) {
+        this.id = id;
+        this.opportunityId = opportunityId;
+        this.pricebookEntryId = pricebookEntryId;
+        this.quantity = quantity;
+        this.unitPrice = unitPrice;
+    }
+
+    public OpportunityLine(String opportunityId, String pricebookEntryId, double quantity, double unitPrice) {
+        this(null, opportunityId, pricebookEntryId, quantity, unitPrice);
+    }
+}
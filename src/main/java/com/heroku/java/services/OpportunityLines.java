@@ -0,0 +1,50 @@
+package com.heroku.java.services;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opportunities and their line items extracted by a job, held on the heap or in a memory-mapped OpportunitySnapshot
+ */
+public interface OpportunityLines extends Closeable {
+
+    /**
+     * Distinct Opportunity Ids, including Opportunities without line items
+     * @return
+     */
+    List<String> opportunityIds();
+
+    /**
+     * All line items, in extraction order
+     * @return
+     */
+    List<OpportunityLine> lines();
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Wraps lines grouped by OpportunityId held on the heap
+     * @param opportunityLines
+     * @return
+     */
+    static OpportunityLines of(Map<String, List<OpportunityLine>> opportunityLines) {
+        List<String> opportunityIds = new ArrayList<>(opportunityLines.keySet());
+        List<OpportunityLine> lines = new ArrayList<>();
+        opportunityLines.values().forEach(lines::addAll);
+        return new OpportunityLines() {
+            @Override
+            public List<String> opportunityIds() {
+                return opportunityIds;
+            }
+
+            @Override
+            public List<OpportunityLine> lines() {
+                return lines;
+            }
+        };
+    }
+}
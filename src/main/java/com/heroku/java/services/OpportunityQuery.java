@@ -0,0 +1,151 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.bind.XmlObject;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts Opportunities and their line items with a SOAP API query, used by the worker and the synchronous
+ * pricing of small requests on the web process
+ */
+@Service
+public class OpportunityQuery {
+
+    // Clauses after the WHERE clause that an appended LIMIT would conflict with
+    private static final Pattern ORDER_OR_LIMIT = Pattern.compile("\\b(order\\s+by|limit|offset)\\b");
+
+    @Autowired
+    private Tracer tracer;
+
+    @Autowired
+    private JobCancellation cancellation;
+
+    // Only on the worker, jobs priced synchronously by the web process are not handed off
+    @Autowired(required = false)
+    private WorkerDrain drain;
+
+    /**
+     * Queries Opportunities and related OpportunityLineItems in one SOQL query. Stops between result pages if the job
+     * is cancelled or the worker is shutting down.
+     * @param connection
+     * @param soqlWhereClause
+     * @param jobId
+     * @return lines grouped by OpportunityId, including Opportunities without lines
+     * @throws ConnectionException
+     */
+    public Map<String, List<OpportunityLine>> queryOpportunityLines(PartnerConnection connection, String soqlWhereClause, String jobId) throws ConnectionException {
+        return queryOpportunityLines(connection, soqlWhereClause, 0, jobId);
+    }
+
+    /**
+     * Queries up to a number of Opportunities and related OpportunityLineItems in one SOQL query. Stops between result
+     * pages if the job is cancelled or the worker is shutting down.
+     * @param connection
+     * @param soqlWhereClause
+     * @param limit maximum number of Opportunities, 0 for all. Not supported for clauses that order or limit the
+     * results themselves, see ordersOrLimits.
+     * @param jobId
+     * @return lines grouped by OpportunityId, including Opportunities without lines
+     * @throws ConnectionException
+     */
+    public Map<String, List<OpportunityLine>> queryOpportunityLines(PartnerConnection connection, String soqlWhereClause, int limit, String jobId) throws ConnectionException {
+        if (limit > 0 && ordersOrLimits(soqlWhereClause)) {
+            throw new IllegalArgumentException("A LIMIT cannot be added to a WHERE clause with ORDER BY, LIMIT or OFFSET");
+        }
+        String soql = String.format(
+            "SELECT Id, (SELECT Id, Product2Id, Quantity, UnitPrice, PricebookEntryId FROM OpportunityLineItems) " +
+            "FROM Opportunity WHERE %s", soqlWhereClause) + (limit > 0 ? " LIMIT " + limit : "");
+        List<SObject> opportunties;
+        Span querySpan = tracer.spanBuilder("query Opportunity").startSpan();
+        try (Scope scope = querySpan.makeCurrent()) {
+            opportunties = queryAllRecords(connection, soql, jobId);
+            querySpan.setAttribute("salesforce.records", opportunties.size());
+        } finally {
+            querySpan.end();
+        }
+        Map<String, List<OpportunityLine>> opportunityLines = new LinkedHashMap<>();
+        for (SObject opportunity : opportunties) {
+            String opportunityId = opportunity.getId();
+            List<OpportunityLine> lines = new ArrayList<>();
+            XmlObject opportunityLineItems = opportunity.getChild("OpportunityLineItems");
+            if (opportunityLineItems != null && opportunityLineItems.hasChildren()) {
+                for (Iterator<XmlObject> it = opportunityLineItems.getChildren(); it.hasNext(); ) {
+                    XmlObject child = it.next();
+                    if(!child.getName().getLocalPart().equals("records")) continue;
+                    lines.add(new OpportunityLine(
+                        child.getField("Id").toString(),
+                        opportunityId,
+                        child.getField("PricebookEntryId").toString(),
+                        Double.parseDouble(child.getField("Quantity").toString()),
+                        Double.parseDouble(child.getField("UnitPrice").toString())));
+                }
+            }
+            opportunityLines.put(opportunityId, lines);
+        }
+        return opportunityLines;
+    }
+
+    /**
+     * Returns true if the WHERE clause is followed by ORDER BY, LIMIT or OFFSET (outside string literals), so a LIMIT
+     * cannot be appended to it
+     * @param soqlWhereClause
+     * @return
+     */
+    public static boolean ordersOrLimits(String soqlWhereClause) {
+        if (soqlWhereClause == null) {
+            return false;
+        }
+        // Blank out string literals so their text is not matched
+        StringBuilder outsideLiterals = new StringBuilder(soqlWhereClause.length());
+        boolean inLiteral = false;
+        for (int i = 0; i < soqlWhereClause.length(); i++) {
+            char c = soqlWhereClause.charAt(i);
+            if (c == '\'' && (i == 0 || soqlWhereClause.charAt(i - 1) != '\\')) {
+                inLiteral = !inLiteral;
+            }
+            outsideLiterals.append(inLiteral || c == '\'' ? ' ' : Character.toLowerCase(c));
+        }
+        return ORDER_OR_LIMIT.matcher(outsideLiterals).find();
+    }
+
+    /**
+     * Ensures all records are retrieved by using query more, throws JobCancelledException or JobHandoffException
+     * before the next page if the job has been cancelled or the worker is shutting down
+     * @param connection
+     * @param soql
+     * @param jobId
+     * @return
+     * @throws ConnectionException
+     */
+    private List<SObject> queryAllRecords(PartnerConnection connection, String soql, String jobId) throws ConnectionException {
+        List<SObject> allRecords = new ArrayList<>();        
+        QueryResult queryResult = connection.query(soql);
+        while (queryResult != null) {
+            SObject[] records = queryResult.getRecords();
+            if (records != null) {
+                allRecords.addAll(Arrays.asList(records));
+            }
+            if (queryResult.isDone()) {
+                break;
+            }
+            cancellation.throwIfCancelled(jobId, 1);
+            if (drain != null) {
+                drain.throwIfDraining(jobId);
+            }
+            queryResult = connection.queryMore(queryResult.getQueryLocator());
+        }
+        return allRecords;
+    }
+}
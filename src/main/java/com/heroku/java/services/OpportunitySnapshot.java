@@ -0,0 +1,296 @@
+package com.heroku.java.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compact binary snapshot of the Opportunities and line items extracted by a job, read via memory-mapped I/O.
+ * Used to spill the line items of very large extractions to disk instead of the heap and to replay pricing offline
+ * (see SnapshotReplayRunner).
+ *
+ * Layout (big endian):
+ * header: magic int, version int, line count long, count of Opportunities without lines int, reserved int
+ * lines: fixed size records of OpportunityId (18 ASCII bytes), PricebookEntryId (18 ASCII bytes), Quantity double, UnitPrice double,
+ * OpportunityLineItem Id (18 ASCII bytes, zero bytes for consolidated lines)
+ * Opportunities without lines: OpportunityId (18 ASCII bytes) each
+ * 15 character Ids are padded with zero bytes. Snapshots of other versions are rejected.
+ */
+public class OpportunitySnapshot implements OpportunityLines {
+
+    private static final int MAGIC = 0x4F505053; // OPPS
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 24;
+    private static final int ID_BYTES = 18;
+    private static final int LINE_BYTES = ID_BYTES * 3 + Double.BYTES * 2;
+    // Lines per mapped segment, each segment is limited to 2GB
+    private static final int LINES_PER_SEGMENT = Integer.MAX_VALUE / LINE_BYTES;
+
+    private final Path path;
+    private final boolean deleteOnClose;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final int lineCount;
+    private final List<String> opportunitiesWithoutLines;
+    private List<String> opportunityIds;
+
+    private OpportunitySnapshot(Path path, boolean deleteOnClose) throws IOException {
+        this.path = path;
+        this.deleteOnClose = deleteOnClose;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            channel.close();
+            throw new IOException(path + " is not an Opportunity snapshot");
+        }
+        long lines = header.getLong();
+        int withoutLines = header.getInt();
+        if (lines > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException(path + " contains more lines than can be processed by one job: " + lines);
+        }
+        this.lineCount = (int) lines;
+        this.segments = new MappedByteBuffer[(lineCount + LINES_PER_SEGMENT - 1) / LINES_PER_SEGMENT];
+        for (int i = 0; i < segments.length; i++) {
+            long start = HEADER_BYTES + (long) i * LINES_PER_SEGMENT * LINE_BYTES;
+            int segmentLines = Math.min(LINES_PER_SEGMENT, lineCount - i * LINES_PER_SEGMENT);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, (long) segmentLines * LINE_BYTES);
+        }
+        ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + (long) lineCount * LINE_BYTES, (long) withoutLines * ID_BYTES);
+        this.opportunitiesWithoutLines = new ArrayList<>(withoutLines);
+        for (int i = 0; i < withoutLines; i++) {
+            opportunitiesWithoutLines.add(readId(trailer, i * ID_BYTES));
+        }
+    }
+
+    /**
+     * Opens a snapshot file
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static OpportunitySnapshot open(Path path) throws IOException {
+        return new OpportunitySnapshot(path, false);
+    }
+
+    /**
+     * Opens a snapshot file that is deleted when the snapshot is closed, used when spilling a job to disk
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static OpportunitySnapshot openTemporary(Path path) throws IOException {
+        return new OpportunitySnapshot(path, true);
+    }
+
+    /**
+     * Creates a writer for a new snapshot file
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static Writer create(Path path) throws IOException {
+        return new Writer(path);
+    }
+
+    /**
+     * Writes extracted Opportunities and lines to a snapshot file
+     * @param path
+     * @param opportunityLines
+     * @throws IOException
+     */
+    public static void write(Path path, OpportunityLines opportunityLines) throws IOException {
+        Set<String> withLines = new HashSet<>();
+        try (Writer writer = create(path)) {
+            for (OpportunityLine line : opportunityLines.lines()) {
+                writer.add(line);
+                withLines.add(line.opportunityId);
+            }
+            for (String opportunityId : opportunityLines.opportunityIds()) {
+                if (!withLines.contains(opportunityId)) {
+                    writer.addOpportunityWithoutLines(opportunityId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Snapshot file for a job in the given directory
+     * @param directory
+     * @param jobId
+     * @return
+     */
+    public static Path path(String directory, String jobId) {
+        return Path.of(directory, jobId + ".snapshot");
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Distinct Opportunity Ids in order of their first line, followed by Opportunities without lines.
+     * Built on first use by scanning the lines.
+     */
+    @Override
+    public synchronized List<String> opportunityIds() {
+        if (opportunityIds == null) {
+            Set<String> ids = new LinkedHashSet<>();
+            for (int i = 0; i < lineCount; i++) {
+                ids.add(opportunityId(i));
+            }
+            ids.addAll(opportunitiesWithoutLines);
+            opportunityIds = List.copyOf(ids);
+        }
+        return opportunityIds;
+    }
+
+    /**
+     * Lines decoded from the mapped file on access
+     */
+    @Override
+    public List<OpportunityLine> lines() {
+        return new AbstractList<>() {
+            @Override
+            public OpportunityLine get(int index) {
+                return line(index);
+            }
+
+            @Override
+            public int size() {
+                return lineCount;
+            }
+        };
+    }
+
+    public int lineCount() {
+        return lineCount;
+    }
+
+    public OpportunityLine line(int index) {
+        Objects.checkIndex(index, lineCount);
+        ByteBuffer segment = segments[index / LINES_PER_SEGMENT];
+        int offset = (index % LINES_PER_SEGMENT) * LINE_BYTES;
+        String id = readId(segment, offset + ID_BYTES * 2 + Double.BYTES * 2);
+        return new OpportunityLine(
+            id.isEmpty() ? null : id,
+            readId(segment, offset),
+            readId(segment, offset + ID_BYTES),
+            segment.getDouble(offset + ID_BYTES * 2),
+            segment.getDouble(offset + ID_BYTES * 2 + Double.BYTES));
+    }
+
+    private String opportunityId(int index) {
+        return readId(segments[index / LINES_PER_SEGMENT], (index % LINES_PER_SEGMENT) * LINE_BYTES);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            if (deleteOnClose) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to close snapshot " + path, e);
+        }
+    }
+
+    private static String readId(ByteBuffer buffer, int offset) {
+        byte[] id = new byte[ID_BYTES];
+        buffer.get(offset, id);
+        int length = ID_BYTES;
+        while (length > 0 && id[length - 1] == 0) {
+            length--;
+        }
+        return new String(id, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static void writeId(ByteBuffer buffer, String id) {
+        byte[] bytes = id == null ? new byte[0] : id.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > ID_BYTES) {
+            throw new IllegalArgumentException("Invalid Salesforce Id: " + id);
+        }
+        buffer.put(bytes);
+        for (int i = bytes.length; i < ID_BYTES; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Appends lines to a new snapshot file, the header is written on close
+     */
+    public static class Writer implements Closeable {
+
+        private static final int BUFFER_BYTES = LINE_BYTES * 4096;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private final List<String> opportunitiesWithoutLines = new ArrayList<>();
+        private long lineCount;
+
+        private Writer(Path path) throws IOException {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            channel.position(HEADER_BYTES);
+        }
+
+        public void add(OpportunityLine line) throws IOException {
+            if (buffer.remaining() < LINE_BYTES) {
+                flush();
+            }
+            writeId(buffer, line.opportunityId);
+            writeId(buffer, line.pricebookEntryId);
+            buffer.putDouble(line.quantity);
+            buffer.putDouble(line.unitPrice);
+            writeId(buffer, line.id);
+            lineCount++;
+        }
+
+        public void addOpportunityWithoutLines(String opportunityId) {
+            opportunitiesWithoutLines.add(opportunityId);
+        }
+
+        public long lineCount() {
+            return lineCount;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                for (String opportunityId : opportunitiesWithoutLines) {
+                    if (buffer.remaining() < ID_BYTES) {
+                        flush();
+                    }
+                    writeId(buffer, opportunityId);
+                }
+                flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                    .putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(lineCount)
+                    .putInt(opportunitiesWithoutLines.size())
+                    .putInt(0)
+                    .flip();
+                channel.write(header, 0);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -2,60 +2,258 @@ package com.heroku.java.services;
 
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import com.sforce.soap.partner.PartnerConnection;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
 import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Mono;
 
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Exposed REST endpoints to Salesforce that will enque jobs to generate Quotes and manage sample data
+ * Exposed REST endpoints to Salesforce that will enque jobs to generate Quotes and manage sample data.
+ * Endpoints return a CompletableFuture so the servlet thread is released while the job is enqueued via reactive Lettuce.
  */
 @Tag(name = "Pricing Engine", description = "Leverage dynamic pricing calculation logic and rules to calculate pricing information in the form of Quotes.")
 @RestController
+@Profile("!worker & !replay")
 @RequestMapping("/api/")
 public class PricingEngineService {
 
     private static final Logger logger = LoggerFactory.getLogger(PricingEngineService.class);
 
     @Autowired
-    private StringRedisTemplate redis;
+    private ReactiveStringRedisTemplate redis;
 
-    @Operation(summary = "Start batch processing for Quote generation", description = "Calculate pricing and generate quotes from Opportunities queried using the SOQL WHERE clause.")
+    @Autowired
+    private OpenTelemetry openTelemetry;
+
+    @Autowired
+    private Tracer tracer;
+
+    @Autowired
+    private JobResultLedger ledger;
+
+    @Autowired
+    private JobCancellation cancellation;
+
+    @Autowired
+    private JobDeduplicator deduplicator;
+
+    @Autowired
+    private JobBacklog backlog;
+
+    @Autowired
+    private InlinePricingService inlinePricing;
+
+    @Operation(summary = "Start batch processing for Quote generation", description = "Calculate pricing and generate quotes from Opportunities queried using the SOQL WHERE clause. Set synchronous to price small selections before responding and return the created Quote Ids.")
+    @ApiResponse(responseCode = "200", description = "OK")
+    @ApiResponse(responseCode = "500", description = "Synchronous pricing failed, no records or only some were created, see the job ledger", content = @Content)
+    @ApiResponse(responseCode = "429", description = "Job backlog for the org or all orgs is full, retry after the number of seconds in the Retry-After header", content = @Content)
     @PostMapping("/executebatch")
-    public BatchExecutionResponse executeBatch(@RequestBody BatchExecutionRequest request, HttpServletRequest httpServletRequest) {
+    public CompletableFuture<BatchExecutionResponse> executeBatch(@RequestBody BatchExecutionRequest request, HttpServletRequest httpServletRequest) {
         logger.info("Received generate Quotes request for Opportunities matching: {}", request.soqlWhereClause);
-        // Submit the job to the queue
-        String jobId = enqueJob("quoteQueue", request.soqlWhereClause, httpServletRequest);
-        BatchExecutionResponse response = new BatchExecutionResponse();
-        response.jobId = jobId;
-        return response;
+        String extractionMode = request.extractionMode == null ? JobMessage.EXTRACTION_SOAP : request.extractionMode;
+        if (!extractionMode.equals(JobMessage.EXTRACTION_SOAP) && !extractionMode.equals(JobMessage.EXTRACTION_BULK)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "extractionMode must be soap or bulk");
+        }
+        // Submit the job to the queue unless an identical job for the org is running, then attach to it
+        PartnerConnection connection = salesforceConnection(httpServletRequest);
+        String jobId = UUID.randomUUID().toString();
+        boolean consolidateLines = Boolean.TRUE.equals(request.consolidateLines);
+        String flightKey = deduplicator.flightKey(connection.getConfig().getServiceEndpoint(), request.soqlWhereClause, consolidateLines);
+        return deduplicator.reserve(flightKey, jobId)
+            .onErrorMap(e -> {
+                logger.error("Error interacting with Redis: {}", e.getMessage(), e);
+                return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to process the request due to an internal error.");
+            })
+            .flatMap(runningJobId -> {
+                if (!runningJobId.equals(jobId)) {
+                    logger.info("Request duplicates running job {}, attaching to it", runningJobId);
+                    return Mono.just(batchExecutionResponse(runningJobId, true));
+                }
+                JobMessage jobMessage = new JobMessage(jobId, request.soqlWhereClause);
+                jobMessage.extractionMode = extractionMode;
+                jobMessage.consolidateLines = consolidateLines;
+                Mono<BatchExecutionResponse> enqueued = Mono.defer(() -> enqueJob(jobMessage, "quoteQueue", 0, connection)
+                    .onErrorResume(e -> deduplicator.cancelReservation(flightKey, jobId).onErrorComplete().then(Mono.error(e)))
+                    .map(enqueuedJobId -> batchExecutionResponse(enqueuedJobId, false)));
+                if (!Boolean.TRUE.equals(request.synchronous) || extractionMode.equals(JobMessage.EXTRACTION_BULK)) {
+                    return enqueued;
+                }
+                // Price small selections in this process, larger ones or those made while busy are queued. The org is
+                // stored as for queued jobs so the caller can download the ledger or roll the job back.
+                return redis.opsForValue().set("salesforce:instance:" + jobId, connection.getConfig().getServiceEndpoint())
+                    .then(Mono.fromFuture(() -> inlinePricing.price(connection, jobId, request.soqlWhereClause, consolidateLines)))
+                    .flatMap(result -> deduplicator.cancelReservation(flightKey, jobId).onErrorComplete()
+                        .thenReturn(synchronousResponse(jobId, result)))
+                    .onErrorResume(e -> deduplicator.cancelReservation(flightKey, jobId).onErrorComplete()
+                        .then(Mono.error(new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to price the request synchronously, see the ledger of job " + jobId + "."))))
+                    .switchIfEmpty(enqueued);
+            })
+            .toFuture();
     }
 
     @Operation(summary = "Create sample Opportunties to test against", description = "Starts a job to create a large amount of Opportunity records.")
+    @ApiResponse(responseCode = "200", description = "OK")
+    @ApiResponse(responseCode = "400", description = "More Opportunities requested than can be queued as one job", content = @Content)
+    @ApiResponse(responseCode = "429", description = "Job backlog for the org or all orgs is full, retry after the number of seconds in the Retry-After header", content = @Content)
     @PostMapping("/data/create")
-    public DataJobResponse datacreate(@RequestParam(defaultValue = "5000") Integer numberOfOpportunities, HttpServletRequest httpServletRequest) {
+    public CompletableFuture<DataJobResponse> datacreate(@RequestParam(defaultValue = "5000") Integer numberOfOpportunities, HttpServletRequest httpServletRequest) {
         logger.info("Received Opportunity data creation request to create {} Opportunties", numberOfOpportunities);
         // Submit the job to the queue
-        String jobId = enqueJob("dataQueue", "create:" + numberOfOpportunities, httpServletRequest);
-        DataJobResponse response = new DataJobResponse();
-        response.jobId = jobId;
-        return response;
+        // Each Opportunity is created with two Opportunity Products
+        return enqueJob("dataQueue", "create:" + numberOfOpportunities, numberOfOpportunities * 3L, httpServletRequest).thenApply(PricingEngineService::dataJobResponse);
     }
 
     @Operation(summary = "Deletes all Quotes created by executeBatch", description = "Starts a job to delete generate Quotes")
     @PostMapping("/data/delete")
-    public DataJobResponse datadelete(HttpServletRequest httpServletRequest) {
+    public CompletableFuture<DataJobResponse> datadelete(HttpServletRequest httpServletRequest) {
         logger.info("Received Quote data deletion request");
         // Submit the job to the queue
-        String jobId = enqueJob("dataQueue", "delete", httpServletRequest);
+        return enqueJob("dataQueue", "delete", 0, httpServletRequest).thenApply(PricingEngineService::dataJobResponse);
+    }
+
+    @Operation(summary = "Download the result ledger of a job", description = "Gzip compressed JSON lines with the created record Ids and failures grouped by status code.")
+    @ApiResponse(responseCode = "200", description = "OK", content = @Content(mediaType = "application/gzip", schema = @Schema(type = "string", format = "binary")))
+    @ApiResponse(responseCode = "404", description = "Unknown job, job of another org or no results recorded for the job", content = @Content)
+    @GetMapping(value = "/jobs/{jobId}/ledger", produces = "application/gzip")
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> jobLedger(@PathVariable String jobId, HttpServletRequest httpServletRequest) {
+        return recordedJob(jobId, salesforceConnection(httpServletRequest))
+            .map(ledgerJobId -> ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"ledger-" + ledgerJobId + ".jsonl.gz\"")
+                .contentType(MediaType.parseMediaType("application/gzip"))
+                .body((StreamingResponseBody) outputStream -> ledger.writeTo(ledgerJobId, outputStream)))
+            .toFuture();
+    }
+
+    @Operation(summary = "Cancel a Quote generation job", description = "Flags the job as cancelled. The worker stops before its next query page, Bulk job poll or create batch, and sends a final progress event for the partial result.")
+    @ApiResponse(responseCode = "200", description = "OK")
+    @ApiResponse(responseCode = "404", description = "Unknown job or job of another org", content = @Content)
+    @PostMapping("/jobs/{jobId}/cancel")
+    public CompletableFuture<JobCancelResponse> cancelJob(@PathVariable String jobId, HttpServletRequest httpServletRequest) {
+        return callerJob(jobId, salesforceConnection(httpServletRequest))
+            .flatMap(runningJobId -> cancellation.cancel(runningJobId).thenReturn(runningJobId))
+            .onErrorMap(e -> !(e instanceof ResponseStatusException), PricingEngineService::internalError)
+            .map(runningJobId -> {
+                JobCancelResponse response = new JobCancelResponse();
+                response.jobId = runningJobId;
+                return response;
+            })
+            .toFuture();
+    }
+
+    @Operation(summary = "Roll back a Quote generation job", description = "Starts a job to hard delete the Quotes created by the job, and with them their QuoteLineItems, in parallel Bulk API batches. Quote Ids are read from the job ledger so no SOQL query is made and Opportunities are not changed. Cancel a running job before rolling it back.")
+    @ApiResponse(responseCode = "200", description = "OK")
+    @ApiResponse(responseCode = "404", description = "Unknown job, job of another org or no results recorded for the job", content = @Content)
+    @PostMapping("/jobs/{jobId}/rollback")
+    public CompletableFuture<DataJobResponse> rollbackJob(@PathVariable String jobId, HttpServletRequest httpServletRequest) {
+        PartnerConnection connection = salesforceConnection(httpServletRequest);
+        return recordedJob(jobId, connection)
+            .flatMap(ledgerJobId -> ledger.createdCount(ledgerJobId, "Quote")
+                .onErrorMap(PricingEngineService::internalError)
+                .flatMap(quotes -> {
+                    logger.info("Received rollback request for job {} with {} Quotes", ledgerJobId, quotes);
+                    // Submit the job to the queue
+                    return enqueJob(new JobMessage(UUID.randomUUID().toString(), "rollback:" + ledgerJobId), "dataQueue", quotes, connection);
+                }))
+            .map(PricingEngineService::dataJobResponse)
+            .toFuture();
+    }
+
+    /**
+     * Resolves a job ID given by the caller, following a duplicate job to the job that ran it, if the job was started
+     * from the caller's org
+     * @param jobId
+     * @param connection
+     * @return completes with the job ID, or NOT_FOUND if the job is unknown or belongs to another org
+     */
+    private Mono<String> callerJob(String jobId, PartnerConnection connection) {
+        String host = URI.create(connection.getConfig().getServiceEndpoint()).getHost();
+        return deduplicator.resolve(jobId)
+            .flatMap(resolvedJobId -> redis.opsForValue().get("salesforce:instance:" + resolvedJobId)
+                .filter(instanceUrl -> URI.create(instanceUrl).getHost().equalsIgnoreCase(host))
+                .map(instanceUrl -> resolvedJobId))
+            .onErrorMap(PricingEngineService::internalError)
+            .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown job " + jobId)));
+    }
+
+    /**
+     * Resolves a job of the caller's org that has results in the job ledger
+     * @param jobId
+     * @param connection
+     * @return completes with the job ID the results are recorded under, or NOT_FOUND
+     */
+    private Mono<String> recordedJob(String jobId, PartnerConnection connection) {
+        return callerJob(jobId, connection)
+            .filterWhen(ledgerJobId -> ledger.exists(ledgerJobId).onErrorMap(PricingEngineService::internalError))
+            .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No results recorded for job " + jobId)));
+    }
+
+    private static ResponseStatusException internalError(Throwable e) {
+        logger.error("Error interacting with Redis: {}", e.getMessage(), e);
+        return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to process the request due to an internal error.");
+    }
+
+    /**
+     * Error for a job that was not admitted, too many requests with a Retry-After hint when the backlog is full
+     * @param admission
+     * @return
+     */
+    private static ResponseStatusException admissionRejected(JobBacklog.Admission admission) {
+        if (admission.exceedsLimit()) {
+            return new ResponseStatusException(HttpStatus.BAD_REQUEST, "Job exceeds the maximum number of records that can be queued, split it into smaller jobs.");
+        }
+        return new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS,
+                "Job backlog is full (" + admission.limit + " limit reached), retry after " + admission.retryAfterSeconds + " seconds.") {
+            @Override
+            public HttpHeaders getHeaders() {
+                HttpHeaders headers = new HttpHeaders();
+                headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(admission.retryAfterSeconds));
+                return headers;
+            }
+        };
+    }
+
+    private static BatchExecutionResponse batchExecutionResponse(String jobId, boolean deduplicated) {
+        BatchExecutionResponse response = new BatchExecutionResponse();
+        response.jobId = jobId;
+        response.deduplicated = deduplicated;
+        return response;
+    }
+
+    private static BatchExecutionResponse synchronousResponse(String jobId, InlinePricingService.Result result) {
+        BatchExecutionResponse response = batchExecutionResponse(jobId, false);
+        response.synchronous = true;
+        response.quoteIds = result.quoteIds;
+        response.failures = result.failures;
+        return response;
+    }
+
+    private static DataJobResponse dataJobResponse(String jobId) {
         DataJobResponse response = new DataJobResponse();
         response.jobId = jobId;
         return response;
@@ -66,6 +264,12 @@ public class PricingEngineService {
     public static class BatchExecutionRequest {
         @Schema(example = "OpportunityId IN ('0065g00000B9tMP', '0065g00000B9tMQ')", description = "A SOQL WHERE clause for filtering opportunities")
         public String soqlWhereClause;
+        @Schema(example = "soap", allowableValues = { "soap", "bulk" }, description = "Use bulk to extract Opportunity line items with a Bulk API 2.0 query, recommended for very large selections. Opportunities without line items are skipped in this mode.")
+        public String extractionMode;
+        @Schema(example = "false", description = "Merge line items of an Opportunity for the same PricebookEntry into one QuoteLineItem for the combined quantity, priced with volume tier discounts. Reduces the QuoteLineItems written.")
+        public Boolean consolidateLines;
+        @Schema(example = "false", description = "Price the Opportunities before responding and return the created Quote Ids, for selections within the synchronous limits (50 Opportunities by default). Larger selections and WHERE clauses with ORDER BY, LIMIT or OFFSET are queued as a job. Ignored for bulk extraction.")
+        public Boolean synchronous;
     }
 
     // Schema to define the response for batch execution containing the job ID
@@ -73,6 +277,14 @@ public class PricingEngineService {
     public static class BatchExecutionResponse {
         @Schema(example = "3f7c47f3-7c66-4c9a-92e5-ef2dbb9a1d67", description = "Unique job ID for tracking the worker process")
         public String jobId;
+        @Schema(example = "false", description = "True if an identical job for the org was already running and its job ID is returned instead of starting a new job. No JobProgress events are published for a job that is being priced synchronously, download its ledger once the original request has completed.")
+        public boolean deduplicated;
+        @Schema(example = "false", description = "True if the request was priced synchronously and quoteIds lists the created Quotes, false if it was queued")
+        public boolean synchronous;
+        @Schema(description = "Ids of the Quotes created by a synchronous request, null if the request was queued")
+        public List<String> quoteIds;
+        @Schema(example = "0", description = "Quotes and QuoteLineItems that failed to be created by a synchronous request, see the job ledger for the errors")
+        public long failures;
     }
 
     // Schema to define the response for batch execution containing the job ID
@@ -82,36 +294,80 @@ public class PricingEngineService {
         public String jobId;
     }
 
+    // Schema to define the response for job cancellation
+    @Schema(description = "Response includes the job ID that has been flagged as cancelled.")
+    public static class JobCancelResponse {
+        @Schema(example = "3f7c47f3-7c66-4c9a-92e5-ef2dbb9a1d67", description = "Unique job ID of the cancelled job")
+        public String jobId;
+    }
+
     /**
      * Enque the job by posting a message to the given channel along with Salesforce connection details
      * @param channel
      * @param message
+     * @param estimatedRecords records the job is expected to write, 0 if not known
      * @param httpServletRequest
-     * @return
+     * @return future completing with the job ID once the message has been published
      */
-    private String enqueJob(String channel, String message, HttpServletRequest httpServletRequest) {
+    private CompletableFuture<String> enqueJob(String channel, String message, long estimatedRecords, HttpServletRequest httpServletRequest) {
         // Generate a unique Job ID for this request
         String jobId = UUID.randomUUID().toString();
-        // Get Salesforce session from request
+        return enqueJob(new JobMessage(jobId, message), channel, estimatedRecords, salesforceConnection(httpServletRequest)).toFuture();
+    }
+
+    /**
+     * Salesforce connection initialized by SalesforceClientContextFilter
+     * @param httpServletRequest
+     * @return
+     */
+    private PartnerConnection salesforceConnection(HttpServletRequest httpServletRequest) {
         PartnerConnection connection = (PartnerConnection) httpServletRequest.getAttribute("salesforcePartnerConnection");
         if (connection == null) {
             logger.error("Salesforce connection is not available.");
             throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Salesforce connection is not available.");
         }
-        try {            
-            // Store session info in Redis for the worker to use
-            String sessionId = connection.getSessionHeader().getSessionId();
-            String instanceUrl = connection.getConfig().getServiceEndpoint(); // Extract instance URL
-            redis.opsForValue().set("salesforce:session:" + jobId, sessionId);
-            redis.opsForValue().set("salesforce:instance:" + jobId, instanceUrl);            
-            // Enqueue job
-            redis.convertAndSend(channel, jobId + ":" + message);
-            logger.info("Job enqueued with ID: {} for message: {} to channel: {}", jobId, message, channel);
-
-        } catch (Exception e) {
-            logger.error("Error interacting with Redis: {}", e.getMessage(), e);
-            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to process the request due to an internal error.");
+        return connection;
+    }
+
+    /**
+     * Enque the job by posting a message to the given channel along with Salesforce connection details
+     * @param jobMessage job ID, body and options, the trace context is added when published
+     * @param channel
+     * @param estimatedRecords records the job is expected to write, 0 if not known until it runs
+     * @param connection
+     * @return completes with the job ID once the message has been published
+     */
+    private Mono<String> enqueJob(JobMessage jobMessage, String channel, long estimatedRecords, PartnerConnection connection) {
+        String jobId = jobMessage.jobId;
+        String message = jobMessage.body;
+        // Store session info in Redis for the worker to use (single round trip) then enqueue job
+        String sessionId = connection.getSessionHeader().getSessionId();
+        String instanceUrl = connection.getConfig().getServiceEndpoint(); // Extract instance URL
+        Span span = tracer.spanBuilder("enqueue " + channel).setSpanKind(SpanKind.PRODUCER)
+            .setAttribute("job.id", jobId).startSpan();
+        try (Scope scope = span.makeCurrent()) {
+            jobMessage.withTraceContext(openTelemetry);
+            return backlog.admit(jobId, instanceUrl, estimatedRecords)
+                .flatMap(admission -> {
+                    span.setAttribute("admission.admitted", admission.admitted);
+                    if (!admission.admitted) {
+                        return Mono.error(admissionRejected(admission));
+                    }
+                    return redis.opsForValue().multiSet(Map.of(
+                            "salesforce:session:" + jobId, sessionId,
+                            "salesforce:instance:" + jobId, instanceUrl))
+                        .then(redis.convertAndSend(channel, jobMessage.toJson()))
+                        .onErrorResume(e -> backlog.withdraw(jobId).onErrorComplete().then(Mono.error(e)));
+                })
+                .doOnSuccess(receivers -> logger.info("Job enqueued with ID: {} for message: {} to channel: {}", jobId, message, channel))
+                .onErrorMap(e -> !(e instanceof ResponseStatusException), e -> {
+                    logger.error("Error interacting with Redis: {}", e.getMessage(), e);
+                    span.recordException(e);
+                    span.setStatus(StatusCode.ERROR);
+                    return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to process the request due to an internal error.");
+                })
+                .doFinally(signal -> span.end())
+                .thenReturn(jobId);
         }
-        return jobId;
     }
 }
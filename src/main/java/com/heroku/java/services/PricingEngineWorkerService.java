@@ -1,30 +1,40 @@
 package com.heroku.java.services;
 
+import com.heroku.java.config.PooledHttpTransport;
 import com.sforce.soap.partner.Connector;
+import com.sforce.soap.partner.DescribeSObjectResult;
 import com.sforce.soap.partner.PartnerConnection;
-import com.sforce.soap.partner.QueryResult;
 import com.sforce.soap.partner.SaveResult;
 import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 import com.sforce.ws.ConnectorConfig;
-import com.sforce.ws.bind.XmlObject;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 
 import jakarta.annotation.PostConstruct;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.redis.connection.Message;
 import org.springframework.data.redis.connection.MessageListener;
-import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.listener.PatternTopic;
-import org.springframework.data.redis.listener.RedisMessageListenerContainer;
-import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.net.URI;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -42,155 +52,388 @@ public class PricingEngineWorkerService implements MessageListener {
     private StringRedisTemplate redis;
 
     @Autowired
-    private RedisConnectionFactory redisConnectionFactory;
+    private OpenTelemetry openTelemetry;
+
+    @Autowired
+    private Tracer tracer;
+
+    @Autowired
+    private JobResultLedger ledger;
+
+    @Autowired
+    private AdaptiveWriteController writeController;
+
+    @Autowired
+    private BulkQueryExtractor bulkQueryExtractor;
+
+    @Autowired
+    private OpportunityQuery opportunityQuery;
+
+    @Autowired
+    private JobCancellation cancellation;
+
+    @Autowired
+    private JobDeduplicator deduplicator;
+
+    @Autowired
+    private JobBacklog backlog;
+
+    @Autowired
+    private WriteCoalescer coalescer;
+
+    @Autowired
+    private WorkerDrain drain;
+
+    @Autowired
+    private JobCheckpoint checkpoint;
+
+    @Value("${snapshot.directory:${java.io.tmpdir}}")
+    private String snapshotDirectory;
+
+    @Value("${snapshot.export:false}")
+    private boolean exportSnapshot;
+
+    @Value("${describe.cache-seconds:300}")
+    private long describeCacheSeconds;
+
+    @Value("${pricing.volume-tiers:}")
+    private String volumeTierConfig;
+
+    private NavigableMap<Double, Double> volumeTiers;
+
+    // Platform Event describes by org and object, shared by concurrent jobs for the same org
+    private final Map<String, CachedDescribe> describeCache = new ConcurrentHashMap<>();
+
+    // Jobs claimed by this worker, removed by whichever of the job or the drain timeout releases the job first
+    private final Map<String, ClaimedJob> claimedJobs = new ConcurrentHashMap<>();
 
     @PostConstruct
-    public void subscribeToRedisQueue() throws InterruptedException {
-        logger.info("Worker subscribing to Redis queue: quoteQueue");
-        // Create and configure Redis listener container
-        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
-        container.setConnectionFactory(redisConnectionFactory);
-        container.addMessageListener(new MessageListenerAdapter(this, "onMessage"), new PatternTopic("quoteQueue"));
-        container.afterPropertiesSet();
-        container.start();
-        logger.info("Worker is now listening for messages.");        
+    public void init() {
+        volumeTiers = QuotePricing.volumeTiers(volumeTierConfig);
+        drain.onTimeout(this::release);
     }
 
     @Override
     public void onMessage(Message message, byte[] pattern) {
         // Extract job ID and SOQL WHERE clause
-        String[] messageParts = new String(message.getBody()).split(":", 2);
-        if (messageParts.length != 2) {
+        JobMessage jobMessage;
+        try {
+            jobMessage = JobMessage.fromJson(message.getBody());
+        } catch (IOException e) {
             logger.error("Invalid message format received: {}", message);
             return;
         }
-        String jobId = messageParts[0];
-        String soqlWhereClause = messageParts[1];
-        logger.info("Worker received job with ID: {} for SOQL WHERE clause: {}", jobId, soqlWhereClause);
-        executeBatch(jobId, soqlWhereClause);
+        String jobId = jobMessage.jobId;
+        logger.info("Worker received job with ID: {} for SOQL WHERE clause: {}", jobId, jobMessage.body);
+        // Other workers receive the same message so a draining worker leaves it to them
+        if (!drain.accept(jobId)) {
+            return;
+        }
+        run(jobMessage);
     }
 
     /**
-     * Queries for Opportunties, calculates pricing and creates Quotes
-     * @param jobId
-     * @param soqlWhereClause
+     * Runs a job accepted by WorkerDrain, received on the quoteQueue channel or handed off by another worker
+     * @param jobMessage
+     */
+    void run(JobMessage jobMessage) {
+        String jobId = jobMessage.jobId;
+        // Continue the trace started by the web request that enqueued the job
+        Span span = tracer.spanBuilder("executeBatch").setParent(jobMessage.traceContext(openTelemetry))
+            .setSpanKind(SpanKind.CONSUMER)
+            .setAttribute("job.id", jobId)
+            .setAttribute("job.queue_wait_ms", jobMessage.queueWaitMillis())
+            .setAttribute("job.extraction_mode", String.valueOf(jobMessage.extractionMode))
+            .setAttribute("job.handoffs", jobMessage.handoffs)
+            .startSpan();
+        try (Scope scope = span.makeCurrent()) {
+            executeBatch(jobMessage);
+        } finally {
+            span.end();
+            drain.done(jobId);
+        }
+    }
+
+    /**
+     * Queries for Opportunties, calculates pricing and creates Quotes. Stops between steps and batches if the job is cancelled
+     * or the worker is shutting down, in which case the job is checkpointed and re-queued for another worker to resume.
+     * @param jobMessage
      */
-    private void executeBatch(String jobId, String soqlWhereClause) {
+    private void executeBatch(JobMessage jobMessage) {
+        String jobId = jobMessage.jobId;
+        String soqlWhereClause = jobMessage.body;
+        String extractionMode = jobMessage.extractionMode;
         logger.info("Worker executing batch for Job ID: {} with WHERE clause: {}", jobId, soqlWhereClause);
 
+        PartnerConnection connection = null;
+        DescribeSObjectResult jobProgressEvent = null;
+        OpportunityLines opportunityLines = null;
+        String flightKey = null;
+        boolean claimed = false;
+        boolean handingOff = false;
+        boolean handedOff = false;
+        ClaimedJob claimedJob = new ClaimedJob(jobMessage);
         try {
+            // Run each job once and attach duplicates of a running job to it
+            if (!deduplicator.claim(jobId)) {
+                return;
+            }
+            claimed = true;
+            claimedJobs.put(jobId, claimedJob);
+            String instanceUrl = redis.opsForValue().get("salesforce:instance:" + jobId);
+            flightKey = deduplicator.flightKey(instanceUrl, soqlWhereClause, jobMessage.consolidateLines);
+            if (!deduplicator.join(flightKey, jobId).equals(jobId)) {
+                flightKey = null;
+                return;
+            }
+            claimedJob.flightKey = flightKey;
+            backlog.started(jobId);
+
             // Recreate Salesforce connection
             String sessionId = redis.opsForValue().get("salesforce:session:" + jobId);
-            String instanceUrl = redis.opsForValue().get("salesforce:instance:" + jobId);
-            PartnerConnection connection = createSalesforceConnection(sessionId, instanceUrl);
+            connection = createSalesforceConnection(sessionId, instanceUrl);
             if (connection == null) {
                 logger.error("Failed to reconnect to Salesforce for Job ID: {}", jobId);
                 return;
             }
+            // Connect while the job starts up, over HTTP/1.1 as many connections as create calls the org currently allows
+            PooledHttpTransport.prewarm(connection.getConfig(), writeController.forOrg(instanceUrl).limit());
 
             // Check if JobProgress__e Platform Event object exists
-            boolean jobProgressEventExists = checkPlatformEventExists(connection, "JobProgress__e");
+            jobProgressEvent = describePlatformEvent(connection, "JobProgress__e");
+            boolean jobProgressEventExists = jobProgressEvent != null;
             if (jobProgressEventExists) { // Signal the job has started
                 sendProgressEvent(connection, jobId, 1);
             }
             
-            // Fetch Opportunities and related OpportunityLineItems in one SOQL query
-            String soql = String.format(
-                "SELECT Id, (SELECT Id, Product2Id, Quantity, UnitPrice, PricebookEntryId FROM OpportunityLineItems) " +
-                "FROM Opportunity WHERE %s", soqlWhereClause);
-            List<SObject> opportunties = queryAllRecords(connection, soql);
-            if (opportunties.size() == 0) {
+            // Fetch Opportunities and related OpportunityLineItems, via the Bulk API for very large selections
+            cancellation.throwIfCancelled(jobId, 1);
+            drain.throwIfDraining(jobId);
+            opportunityLines = JobMessage.EXTRACTION_BULK.equals(extractionMode)
+                ? bulkQueryExtractor.extractOpportunityLines(connection, soqlWhereClause, jobId)
+                : OpportunityLines.of(opportunityQuery.queryOpportunityLines(connection, soqlWhereClause, jobId));
+            cancellation.throwIfCancelled(jobId, 1);
+            List<String> opportunityIds = opportunityLines.opportunityIds();
+            if (opportunityIds.isEmpty()) {
                 logger.warn("No Opportunities or related OpportunityLineItems found for WHERE clause: {}", soqlWhereClause);
                 return;
             }
-            logger.info("Processing {} Opportunities", opportunties.size());
+            logger.info("Processing {} Opportunities", opportunityIds.size());
+            List<OpportunityLine> lines = opportunityLines.lines();
+            if (jobMessage.consolidateLines) { // Write one QuoteLineItem per Quote and PricebookEntry
+                Span consolidateSpan = tracer.spanBuilder("consolidate lines").setAttribute("salesforce.records", lines.size()).startSpan();
+                lines = QuotePricing.consolidate(lines, volumeTiers);
+                consolidateSpan.setAttribute("lines.consolidated", lines.size());
+                consolidateSpan.end();
+                logger.info("Consolidated {} lines into {}", opportunityLines.lines().size(), lines.size());
+            }
+            backlog.estimate(jobId, opportunityIds.size() + (long) lines.size());
+            if (exportSnapshot) { // Keep the extracted data for offline pricing replay
+                Path snapshotPath = OpportunitySnapshot.path(snapshotDirectory, jobId);
+                OpportunitySnapshot.write(snapshotPath, opportunityLines);
+                logger.info("Exported extracted Opportunities for Job ID: {} to {}", jobId, snapshotPath);
+            }
+
+            // Resume from the checkpoint of a worker that handed the job off
+            Map<String, String> checkpointedQuotes = checkpoint.quotes(jobId);
+            Set<String> checkpointedLines = checkpoint.lines(jobId);
+            if (!checkpointedQuotes.isEmpty()) {
+                logger.info("Resuming job {} with {} Quotes and {} QuoteLineItems already processed", jobId,
+                    checkpointedQuotes.size(), checkpointedLines.size());
+            }
 
-            // Step 1: Collect all Opportunities and related OpportunityLineItems
+            // Step 1: Create a Quote record for each Opportunity, from here the job can only be resumed from a checkpoint
+            claimedJob.writing = true;
             List<SObject> quotesToCreate = new ArrayList<>();
-            Map<String, XmlObject> opportunityLineItemsMap = new HashMap<>();
-            List<String> opportunityIds = new ArrayList<>();
-            for (SObject opportunity : opportunties) {
-                String opportunityId = opportunity.getId();
-                opportunityIds.add(opportunityId);
-                // Create Quote record
-                SObject quote = new SObject("Quote");
-                quote.setField("Name", "New Quote");
-                quote.setField("OpportunityId", opportunityId);
-                quotesToCreate.add(quote);
-                // Store related OpportunityLineItems for processing later
-                XmlObject opportunityLineItems = (XmlObject) opportunity.getChild("OpportunityLineItems");
-                if (opportunityLineItems != null) {
-                    opportunityLineItemsMap.put(opportunityId, opportunityLineItems);
+            for (String opportunityId : opportunityIds) {
+                if (!checkpointedQuotes.containsKey(opportunityId)) {
+                    quotesToCreate.add(QuotePricing.quote(opportunityId));
                 }
             }
-            if (quotesToCreate.isEmpty()) {
-                logger.warn("No Quotes to create. Exiting job.");
-                return;
-            }
 
-            // Step 2: Bulk create Quotes
+            // Step 2: Bulk create Quotes, mapping each back to its OpportunityId as its batch completes (empty if it
+            // failed, failures are recorded in the job ledger)
             logger.info("Performing bulk insert for {} Quotes", quotesToCreate.size());
-            List<SaveResult> quoteSaveResults = createParallel(connection, quotesToCreate, jobId, 0.0, 50.0, jobProgressEventExists);
-
-            // Step 3: Map created Quotes back to their OpportunityId
-            Map<String, String> opportunityToQuoteMap = new HashMap<>();
-            int idx=0;
-            for (SaveResult saveResult : quoteSaveResults) {
-                if (saveResult.isSuccess()) {
-                    opportunityToQuoteMap.put(opportunityIds.get(idx), saveResult.getId());
-                } else {
-                    logger.error("Failed to create Quote for Opportunity {}: {}", opportunityIds.get(idx), saveResult.getErrors()[0].getMessage());
-                }
-                idx++;
+            Map<String, String> opportunityToQuoteMap = new ConcurrentHashMap<>();
+            try {
+                createParallel(connection, quotesToCreate, "OpportunityId", jobId, 0.0, 50.0, jobProgressEventExists, (offset, batch, results) -> {
+                    for (int i = 0; i < batch.size(); i++) {
+                        opportunityToQuoteMap.put(String.valueOf(batch.get(i).getField("OpportunityId")), results[i].isSuccess() ? results[i].getId() : "");
+                    }
+                });
+            } catch (JobHandoffException e) {
+                checkpoint.saveQuotes(jobId, opportunityToQuoteMap);
+                throw e;
             }
 
-            // Step 4: Prepare all QuoteLineItems for batch insert
-            List<SObject> quoteLineItemsToCreate = new ArrayList<>();
-            for (String opportunityId : opportunityToQuoteMap.keySet()) {
-                String quoteId = opportunityToQuoteMap.get(opportunityId);
-                XmlObject opportunityLineItems = opportunityLineItemsMap.get(opportunityId);
-                double discountRate = getDiscountForRegion("US");            
-                if (opportunityLineItems == null || !opportunityLineItems.hasChildren()) continue;            
-                for (Iterator<XmlObject> it = opportunityLineItems.getChildren(); it.hasNext(); ) {
-                    XmlObject child = it.next(); 
-                    if(!child.getName().getLocalPart().equals("records")) continue;
-                    double quantity = Double.parseDouble(child.getField("Quantity").toString());
-                    double unitPrice = Double.parseDouble(child.getField("UnitPrice").toString());
-                    double discountedPrice = (quantity * unitPrice) * (1 - discountRate);
-                    SObject quoteLineItem = new SObject("QuoteLineItem");
-                    quoteLineItem.setField("QuoteId", quoteId);
-                    quoteLineItem.setField("PricebookEntryId", child.getField("PricebookEntryId"));
-                    quoteLineItem.setField("Quantity", quantity);
-                    quoteLineItem.setField("UnitPrice", discountedPrice / quantity);
-                    quoteLineItemsToCreate.add(quoteLineItem);
+            // Step 3: Add Quotes created by earlier attempts of the job
+            opportunityToQuoteMap.values().removeIf(String::isEmpty);
+            checkpointedQuotes.forEach((opportunityId, quoteId) -> {
+                if (!quoteId.isEmpty()) {
+                    opportunityToQuoteMap.put(opportunityId, quoteId);
                 }
-            }
+            });
+
+            // Step 4: Prepare all QuoteLineItems for batch insert (priced as each batch is sent)
+            Span pricingSpan = tracer.spanBuilder("price QuoteLineItems").startSpan();
+            QuotePricing.QuoteLineItems quoteLineItemsToCreate = QuotePricing.quoteLineItems(lines, opportunityToQuoteMap, QuotePricing.discountForRegion("US"), checkpointedLines);
+            pricingSpan.setAttribute("salesforce.records", quoteLineItemsToCreate.size());
+            pricingSpan.end();
             
-            // Step 5: Bulk create QuoteLineItems
-            if (!quoteLineItemsToCreate.isEmpty()) {
-                logger.info("Performing bulk insert for {} QuoteLineItems", quoteLineItemsToCreate.size());
-                List<SaveResult> quoteLineSaveResults = createParallel(connection, quoteLineItemsToCreate, jobId, 50.0, 100.0, jobProgressEventExists);
-                for (SaveResult saveResult : quoteLineSaveResults) {
-                    if (!saveResult.isSuccess()) {
-                        logger.error("Failed to create QuoteLineItem: {}", saveResult.getErrors()[0].getMessage());
-                    }
+            // Step 5: Bulk create QuoteLineItems, tracking the completed ones by index so only they are checkpointed
+            BitSet completedLines = new BitSet(quoteLineItemsToCreate.size());
+            try {
+                drain.throwIfDraining(jobId);
+                if (!quoteLineItemsToCreate.isEmpty()) {
+                    logger.info("Performing bulk insert for {} QuoteLineItems", quoteLineItemsToCreate.size());
+                    createParallel(connection, quoteLineItemsToCreate, "QuoteId", jobId, 50.0, 100.0, jobProgressEventExists, (offset, batch, results) -> {
+                        synchronized (completedLines) {
+                            completedLines.set(offset, offset + batch.size());
+                        }
+                    });
+                }
+            } catch (JobHandoffException e) {
+                // Opportunities without a Quote failed, they are recorded in the ledger and not retried
+                Map<String, String> processedQuotes = new HashMap<>();
+                for (String opportunityId : opportunityIds) {
+                    processedQuotes.put(opportunityId, opportunityToQuoteMap.getOrDefault(opportunityId, ""));
+                }
+                checkpoint.saveQuotes(jobId, processedQuotes);
+                synchronized (completedLines) {
+                    checkpoint.saveLines(jobId, writtenLines(quoteLineItemsToCreate, completedLines));
                 }
+                throw e;
             }
 
             logger.info("Job processing completed for Job ID: {}", jobId);
+            ledger.logSummary(jobId);
+            checkpoint.delete(jobId);
 
+        } catch (JobHandoffException e) {
+            handingOff = true;
+        } catch (JobCancelledException e) {
+            logger.info("Job {} cancelled at {}% progress", jobId, e.getProgress());
+            Span.current().setAttribute("job.cancelled", true);
+            ledger.recordCancelled(jobId);
+            ledger.logSummary(jobId);
+            if (jobProgressEvent != null) { // Report the partial result
+                boolean statusFieldExists = Arrays.stream(jobProgressEvent.getFields()).anyMatch(field -> field.getName().equals("Status__c"));
+                sendProgressEvent(connection, jobId, e.getProgress(), statusFieldExists ? "Cancelled" : null);
+            }
+            checkpoint.delete(jobId);
         } catch (Exception e) {
             logger.error("Error executing batch: {}", e.toString(), e);
+            Span.current().recordException(e);
+            Span.current().setStatus(StatusCode.ERROR);
+            // Report the records created before the failure
+            ledger.logSummary(jobId);
+        } finally {
+            // Released by the drain timeout while the job was still running
+            boolean released = claimed && claimedJobs.remove(jobId) == null;
+            if (handingOff && !released) {
+                handedOff = requeue(jobMessage);
+            }
+            // A handed off job keeps its flight so identical requests still attach to it
+            if (flightKey != null && !handedOff && !released) {
+                deduplicator.leave(flightKey, jobId);
+            }
+            if (claimed && handedOff) {
+                backlog.requeued(jobId);
+            } else if (claimed && !released) {
+                backlog.finished(jobId);
+            }
+            cancellation.forget(jobId);
+            if (opportunityLines != null) {
+                opportunityLines.close();
+            }
         }
     }
 
-    private boolean checkPlatformEventExists(PartnerConnection connection, String objectName) {
+    /**
+     * Pushes the job message to the handoff queue for another worker to resume the job from its checkpoint. The queue
+     * is a Redis list so the job is kept until a worker pops it, including when all workers are restarting.
+     * @param jobMessage
+     * @return false if the job could not be queued
+     */
+    private boolean requeue(JobMessage jobMessage) {
+        String jobId = jobMessage.jobId;
+        Span.current().setAttribute("job.handed_off", true);
         try {
-            connection.describeSObject(objectName);
+            deduplicator.unclaim(jobId);
+            jobMessage.handoffs++;
+            jobMessage.enqueuedAt = System.currentTimeMillis();
+            redis.opsForList().leftPush(JobMessage.HANDOFF_QUEUE, jobMessage.toJson());
+            logger.info("Worker shutting down, handed off job {} to another worker", jobId);
             return true;
+        } catch (Exception e) {
+            logger.error("Error handing off job {}: {}", jobId, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Releases jobs still running when the worker's drain timed out, as the process exits without them completing.
+     * Jobs that had not started creating records are handed off to be run again (createParallel does not start batches
+     * once the worker is draining), the others cannot be resumed without a checkpoint so their claim and flight are
+     * released and identical requests can be submitted again.
+     * @param jobIds
+     */
+    private void release(Set<String> jobIds) {
+        for (String jobId : jobIds) {
+            ClaimedJob claimedJob = claimedJobs.remove(jobId);
+            if (claimedJob == null) {
+                continue;
+            }
+            if (!claimedJob.writing && requeue(claimedJob.jobMessage)) {
+                backlog.requeued(jobId);
+                continue;
+            }
+            logger.error("Job {} did not complete before the worker shut down, records created so far are in its ledger", jobId);
+            deduplicator.unclaim(jobId);
+            if (claimedJob.flightKey != null) {
+                deduplicator.leave(claimedJob.flightKey, jobId);
+            }
+            backlog.finished(jobId);
+        }
+    }
+
+    /**
+     * Lines of the QuoteLineItems sent by completed create batches, records are not kept as their batches complete
+     * @param quoteLineItems
+     * @param completed indexes of the records sent
+     * @return QuotePricing.lineKey of each line
+     */
+    private static List<String> writtenLines(QuotePricing.QuoteLineItems quoteLineItems, BitSet completed) {
+        List<String> written = new ArrayList<>(completed.cardinality());
+        for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+            written.add(QuotePricing.lineKey(quoteLineItems.line(i)));
+        }
+        return written;
+    }
+
+    /**
+     * Describes the Platform Event object, reusing the describe made by an earlier job for the org for the configured time
+     * @param connection
+     * @param objectName
+     * @return null if the object does not exist or is not accessible
+     */
+    private DescribeSObjectResult describePlatformEvent(PartnerConnection connection, String objectName) {
+        String cacheKey = URI.create(connection.getConfig().getServiceEndpoint()).getHost() + "|" + objectName;
+        CachedDescribe cached = describeCache.get(cacheKey);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return cached.result;
+        }
+        Span span = tracer.spanBuilder("describe " + objectName).startSpan();
+        try {
+            DescribeSObjectResult result = connection.describeSObject(objectName);
+            // Objects that are missing are not cached so they are found once deployed
+            describeCache.put(cacheKey, new CachedDescribe(result, System.currentTimeMillis() + describeCacheSeconds * 1000));
+            return result;
         } catch (ConnectionException e) {
             logger.warn("Platform Event object '{}' does not exist or is not accessible: {}", objectName, e.getMessage());
-            return false;
+            return null;
+        } finally {
+            span.end();
         }
     }
 
@@ -202,9 +445,8 @@ public class PricingEngineWorkerService implements MessageListener {
      */
     private PartnerConnection createSalesforceConnection(String sessionId, String instanceUrl) {
         try {
-            ConnectorConfig config = new ConnectorConfig();
-            config.setServiceEndpoint(instanceUrl);
-            config.setSessionId(sessionId);
+            // Create calls that stall time out and halve the org's concurrency limit
+            ConnectorConfig config = PooledHttpTransport.connectorConfig(instanceUrl, sessionId, writeController.readTimeoutMillis());
             return Connector.newConnection(config);
         } catch (Exception e) {
             logger.error("Error creating Salesforce connection: {}", e.getMessage(), e);
@@ -213,47 +455,86 @@ public class PricingEngineWorkerService implements MessageListener {
     }
 
     /**
-     * Ensures all records are retrieved by using query more
-     * @param connection
-     * @param soql
-     * @return
-     * @throws ConnectionException
-     */
-    private List<SObject> queryAllRecords(PartnerConnection connection, String soql) throws ConnectionException {
-        List<SObject> allRecords = new ArrayList<>();        
-        QueryResult queryResult = connection.query(soql);
-        while (queryResult != null) {
-            SObject[] records = queryResult.getRecords();
-            if (records != null) {
-                allRecords.addAll(Arrays.asList(records)); // Use addAll() directly
-            }
-            if (queryResult.isDone()) {
-                break;
-            }
-            queryResult = connection.queryMore(queryResult.getQueryLocator());
-        }
-        return allRecords;
-    }
-
-    /**
-     * Splits SObject creation into parallel requests of 200 or less to accomodate REST API create limit
+     * Splits SObject creation into parallel requests of 200 or less to accomodate REST API create limit.
+     * Batch payload size and the number of concurrent requests to the org are managed by the AdaptiveWriteController.
+     * Partly filled batches are sent via the WriteCoalescer to be merged with batches of other jobs for the org.
+     * Results of each request are streamed to the job ledger and passed to onCompleted as they complete, they are not
+     * kept so records can be built as they are sent.
+     * Batches that have not started when the job is cancelled or the worker is shutting down are skipped and
+     * JobCancelledException or JobHandoffException is thrown once in-flight requests complete.
      * @param connection
      * @param records
-     * @return
+     * @param sourceField field identifying the source record of each record in the job ledger
+     * @param onCompleted called from the request threads for each batch that completed, including failed requests
      */
-    private List<SaveResult> createParallel(PartnerConnection connection, List<SObject> records, String jobId, double baseProgress, double maxProgress, boolean jobProgressEventExists) {        
-        ExecutorService executor = Executors.newFixedThreadPool(20);
-        List<Future<SaveResult[]>> futures = new ArrayList<>();
-        int totalBatches = (int) Math.ceil(records.size() / 200.0);
+    private void createParallel(PartnerConnection connection, List<SObject> records, String sourceField, String jobId, double baseProgress, double maxProgress, boolean jobProgressEventExists, CompletedBatch onCompleted) {
+        if (records.isEmpty()) {
+            // Nothing to create, e.g. every Quote was created before a handoff, and no batches to measure progress by
+            return;
+        }
+        String sObjectType = records.get(0).getType();
+        Span span = tracer.spanBuilder("create " + sObjectType).setAttribute("salesforce.records", records.size()).startSpan();
+        Context context = Context.current().with(span);
+        AdaptiveWriteController.OrgWriteLimit writeLimit = writeController.forOrg(connection.getConfig().getServiceEndpoint());
+        List<List<SObject>> batches = writeController.partition(records);
+        ExecutorService executor = Executors.newFixedThreadPool(writeController.maxConcurrency());
+        List<Future<Long>> futures = new ArrayList<>();
+        int totalBatches = batches.size();
         final int[] batchCounter = {0}; // used in lambda
+        // Part batches of other jobs in the coalescer wait for this job's records until it completes
+        WriteCoalescer.Registration registration = coalescer.register(connection, sObjectType);
 
-        for (int i = 0; i < records.size(); i += 200) {
-            int end = Math.min(i + 200, records.size());
-            List<SObject> batch = records.subList(i, end);
-            logger.info("Creating records from index {} to {} ({} records)", i, end - 1, (end - i));
-            Future<SaveResult[]> future = executor.submit(() -> {
-                try {  
-                    SaveResult[] results = connection.create(batch.toArray(new SObject[0]));
+        int index = 0;
+        for (List<SObject> pending : batches) {
+            logger.info("Creating records from index {} to {} ({} records)", index, index + pending.size() - 1, pending.size());
+            int offset = index;
+            index += pending.size();
+            Future<Long> future = executor.submit(context.wrap(() -> {
+                // Records such as QuoteLineItems are built as they are accessed, so build the batch once when it runs
+                List<SObject> batch = List.copyOf(pending);
+                Span batchSpan = tracer.spanBuilder("create " + sObjectType + " batch").setAttribute("salesforce.records", batch.size()).startSpan();
+                try (Scope scope = batchSpan.makeCurrent()) {
+                    if (cancellation.isCancelled(jobId)) {
+                        batchSpan.setAttribute("job.cancelled", true);
+                        return null;
+                    }
+                    if (drain.isDraining()) {
+                        batchSpan.setAttribute("job.handed_off", true);
+                        return null;
+                    }
+                    SaveResult[] results;
+                    if (coalescer.shouldCoalesce(batch.size())) {
+                        // Partly filled batches are merged with those of other jobs for the org
+                        batchSpan.setAttribute("writes.coalesced", true);
+                        try {
+                            results = coalescer.create(connection, batch).get();
+                        } catch (ExecutionException e) {
+                            throw e.getCause() instanceof Exception cause ? cause : e;
+                        }
+                    } else {
+                        long startNanos = writeLimit.acquire();
+                        // The job may have been cancelled, or the worker started shutting down, while waiting for the org's concurrency limit
+                        if (cancellation.isCancelled(jobId)) {
+                            writeLimit.abandon();
+                            batchSpan.setAttribute("job.cancelled", true);
+                            return null;
+                        }
+                        if (drain.isDraining()) {
+                            writeLimit.abandon();
+                            batchSpan.setAttribute("job.handed_off", true);
+                            return null;
+                        }
+                        try {
+                            results = connection.create(batch.toArray(new SObject[0]));
+                            writeLimit.release(startNanos, AdaptiveWriteController.isOverloaded(results, null));
+                        } catch (Exception e) {
+                            writeLimit.release(startNanos, AdaptiveWriteController.isOverloaded(null, e));
+                            throw e;
+                        }
+                    }
+                    ledger.record(jobId, batch, sourceField, results);
+                    onCompleted.accept(offset, batch, results);
+                    backlog.progress(jobId, batch.size());
 
                     synchronized (batchCounter) {
                         batchCounter[0]++;
@@ -263,27 +544,63 @@ public class PricingEngineWorkerService implements MessageListener {
                         }
                     }
 
-                    return results;
+                    return failures(results);
                 } catch (Exception e) {
                     logger.error("Error creating batch: {}", e.getMessage(), e);
-                    return new SaveResult[0];
+                    batchSpan.recordException(e);
+                    batchSpan.setStatus(StatusCode.ERROR);
+                    SaveResult[] results = AdaptiveWriteController.failedResults(batch.size(), e);
+                    ledger.record(jobId, batch, sourceField, results);
+                    onCompleted.accept(offset, batch, results);
+                    return failures(results);
+                } finally {
+                    batchSpan.end();
                 }
-            });
+            }));
             futures.add(future);
         }
 
-        List<SaveResult> allResults = new ArrayList<>();
-        for (Future<SaveResult[]> future : futures) {
+        long failures = 0;
+        boolean skipped = false;
+        for (Future<Long> future : futures) {
             try {
-                SaveResult[] batchResults = future.get();
-                Collections.addAll(allResults, batchResults);
+                Long batchFailures = future.get();
+                if (batchFailures != null) {
+                    failures += batchFailures;
+                } else { // Skipped after cancellation or on shutdown
+                    skipped = true;
+                }
             } catch (Exception e) {
                 logger.error("Error retrieving batch results: {}", e.getMessage(), e);
             }
         }
+        registration.close();
         executor.shutdown();
-        return allResults;
-    }    
+        span.setAttribute("salesforce.failures", failures);
+        span.end();
+        cancellation.throwIfCancelled(jobId, baseProgress + ((double) batchCounter[0] / totalBatches) * (maxProgress - baseProgress));
+        if (skipped && drain.isDraining()) {
+            throw new JobHandoffException(jobId);
+        }
+    }
+
+    private static long failures(SaveResult[] results) {
+        return Arrays.stream(results).filter(result -> !result.isSuccess()).count();
+    }
+
+    /**
+     * Receives the results of a create batch as it completes
+     */
+    @FunctionalInterface
+    private interface CompletedBatch {
+
+        /**
+         * @param offset index of the first record of the batch in the records being created
+         * @param batch
+         * @param results in the same order as batch
+         */
+        void accept(int offset, List<SObject> batch, SaveResult[] results);
+    }
 
     /**
      * Publishes JobProgress__e Platform Event with progress percent and logs errors if any
@@ -292,10 +609,25 @@ public class PricingEngineWorkerService implements MessageListener {
      * @param progressPercent
      */
     private void sendProgressEvent(PartnerConnection connection, String jobId, double progressPercent) {
+        sendProgressEvent(connection, jobId, progressPercent, null);
+    }
+
+    /**
+     * Publishes JobProgress__e Platform Event with progress percent and status, logs errors if any
+     * @param connection
+     * @param jobId
+     * @param progressPercent
+     * @param status value for the optional Status__c field, not set if null
+     */
+    private void sendProgressEvent(PartnerConnection connection, String jobId, double progressPercent, String status) {
+        Span span = tracer.spanBuilder("progress event").setAttribute("job.progress", progressPercent).startSpan();
         try {
             SObject event = new SObject("JobProgress__e");
             event.setField("JobId__c", jobId);
             event.setField("Progress__c", progressPercent);
+            if (status != null) {
+                event.setField("Status__c", status);
+            }
             SaveResult[] results = connection.create(new SObject[] { event });
             if (results == null || results.length == 0) {
                 logger.error("No response received from Salesforce when sending progress event.");
@@ -311,21 +643,37 @@ public class PricingEngineWorkerService implements MessageListener {
             }
         } catch (Exception e) {
             logger.error("Exception while sending progress event for job {}: {}", jobId, e.getMessage(), e);
+        } finally {
+            span.end();
         }
     }
 
     /**
-     * Sample discount matrix data
-     * @param region
-     * @return
+     * Describe result and when it should be refreshed
      */
-    private double getDiscountForRegion(String region) {
-        // Simple hardcoded discount logic
-        switch (region) {
-            case "US": return 0.10;
-            case "EU": return 0.15;
-            case "APAC": return 0.05;
-            default: return 0.0;
+    private static class CachedDescribe {
+
+        private final DescribeSObjectResult result;
+        private final long expiresAt;
+
+        private CachedDescribe(DescribeSObjectResult result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Job claimed by this worker and how far it has got, used to release it if the drain times out
+     */
+    private static class ClaimedJob {
+
+        private final JobMessage jobMessage;
+        private volatile String flightKey;
+        // Records are being created, re-running the job without a checkpoint would duplicate them
+        private volatile boolean writing;
+
+        private ClaimedJob(JobMessage jobMessage) {
+            this.jobMessage = jobMessage;
         }
     }
 }
@@ -0,0 +1,235 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.sobject.SObject;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Pricing rules, line consolidation and Quote / QuoteLineItem record building, shared by the worker and offline snapshot replay
+ */
+public final class QuotePricing {
+
+    private QuotePricing() {
+    }
+
+    /**
+     * New Quote for an Opportunity
+     * @param opportunityId
+     * @return
+     */
+    public static SObject quote(String opportunityId) {
+        SObject quote = new SObject("Quote");
+        quote.setField("Name", "New Quote");
+        quote.setField("OpportunityId", opportunityId);
+        return quote;
+    }
+
+    /**
+     * Priced QuoteLineItem for an Opportunity line
+     * @param quoteId
+     * @param line
+     * @param discountRate
+     * @return
+     */
+    public static SObject quoteLineItem(String quoteId, OpportunityLine line, double discountRate) {
+        SObject quoteLineItem = new SObject("QuoteLineItem");
+        quoteLineItem.setField("QuoteId", quoteId);
+        quoteLineItem.setField("PricebookEntryId", line.pricebookEntryId);
+        quoteLineItem.setField("Quantity", line.quantity);
+        quoteLineItem.setField("UnitPrice", unitPrice(line, discountRate));
+        return quoteLineItem;
+    }
+
+    private static double unitPrice(OpportunityLine line, double discountRate) {
+        double discountedPrice = (line.quantity * line.unitPrice) * (1 - discountRate);
+        return discountedPrice / line.quantity;
+    }
+
+    /**
+     * QuoteLineItems for the lines of Opportunities that have a Quote. Records are priced and built as they are
+     * accessed, so only the QuoteLineItems of the batches being sent are held on the heap when the lines are in a
+     * snapshot.
+     * @param lines
+     * @param opportunityToQuoteMap
+     * @param discountRate
+     * @return
+     */
+    public static QuoteLineItems quoteLineItems(List<OpportunityLine> lines, Map<String, String> opportunityToQuoteMap, double discountRate) {
+        return quoteLineItems(lines, opportunityToQuoteMap, discountRate, Set.of());
+    }
+
+    /**
+     * QuoteLineItems for the lines of Opportunities that have a Quote, less those already written by an earlier
+     * attempt of the job (see JobCheckpoint)
+     * @param lines
+     * @param opportunityToQuoteMap
+     * @param discountRate
+     * @param written lineKey of the lines already written
+     * @return
+     */
+    public static QuoteLineItems quoteLineItems(List<OpportunityLine> lines, Map<String, String> opportunityToQuoteMap, double discountRate, Set<String> written) {
+        // Index of each line whose Opportunity has a Quote (failed Quotes are recorded in the job ledger)
+        int[] quotedLines = new int[lines.size()];
+        int count = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            OpportunityLine line = lines.get(i);
+            if (opportunityToQuoteMap.get(line.opportunityId) == null) {
+                continue;
+            }
+            if (!written.isEmpty() && written.contains(lineKey(line))) {
+                continue;
+            }
+            quotedLines[count++] = i;
+        }
+        return new QuoteLineItems(lines, Arrays.copyOf(quotedLines, count), opportunityToQuoteMap, discountRate);
+    }
+
+    /**
+     * Merges the lines of each Opportunity for the same PricebookEntry into one line for the combined quantity, priced
+     * at the quantity weighted unit price less the volume discount for the combined quantity. Lines are returned in
+     * order of the first line for each Opportunity and PricebookEntry and held on the heap.
+     * @param lines
+     * @param volumeTiers discount by minimum quantity, see volumeTiers
+     * @return
+     */
+    public static List<OpportunityLine> consolidate(List<OpportunityLine> lines, NavigableMap<Double, Double> volumeTiers) {
+        // Quantity, amount and first unit price by Opportunity and PricebookEntry
+        Map<String, double[]> totals = new LinkedHashMap<>();
+        Map<String, OpportunityLine> firstLines = new HashMap<>();
+        for (OpportunityLine line : lines) {
+            String key = line.opportunityId + "|" + line.pricebookEntryId;
+            double[] total = totals.computeIfAbsent(key, k -> new double[2]);
+            total[0] += line.quantity;
+            total[1] += line.quantity * line.unitPrice;
+            firstLines.putIfAbsent(key, line);
+        }
+        List<OpportunityLine> consolidated = new ArrayList<>(totals.size());
+        totals.forEach((key, total) -> {
+            OpportunityLine first = firstLines.get(key);
+            double unitPrice = total[0] == 0 ? first.unitPrice : total[1] / total[0];
+            consolidated.add(new OpportunityLine(first.opportunityId, first.pricebookEntryId, total[0],
+                unitPrice * (1 - volumeDiscount(total[0], volumeTiers))));
+        });
+        return consolidated;
+    }
+
+    /**
+     * Parses volume pricing tiers
+     * @param tiers comma separated minimum quantity and discount rate pairs, e.g. 10:0.02,50:0.05
+     * @return discount rate by minimum quantity
+     */
+    public static NavigableMap<Double, Double> volumeTiers(String tiers) {
+        NavigableMap<Double, Double> volumeTiers = new TreeMap<>();
+        if (tiers == null || tiers.isBlank()) {
+            return volumeTiers;
+        }
+        for (String tier : tiers.split(",")) {
+            String[] parts = tier.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid volume tier, expected quantity:discount: " + tier);
+            }
+            volumeTiers.put(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()));
+        }
+        return volumeTiers;
+    }
+
+    /**
+     * Discount rate of the highest tier the quantity reaches
+     * @param quantity
+     * @param volumeTiers
+     * @return 0 below the first tier
+     */
+    public static double volumeDiscount(double quantity, NavigableMap<Double, Double> volumeTiers) {
+        Map.Entry<Double, Double> tier = volumeTiers.floorEntry(quantity);
+        return tier == null ? 0.0 : tier.getValue();
+    }
+
+    /**
+     * Identifies the line a QuoteLineItem is written for across attempts of a job, regardless of the order lines are
+     * extracted in. The OpportunityLineItem Id, or the Opportunity and PricebookEntry of a consolidated line.
+     * @param line
+     * @return
+     */
+    public static String lineKey(OpportunityLine line) {
+        return line.id != null ? line.id : line.opportunityId + "|" + line.pricebookEntryId;
+    }
+
+    /**
+     * Sample discount matrix data
+     * @param region
+     * @return
+     */
+    public static double discountForRegion(String region) {
+        // Simple hardcoded discount logic
+        switch (region) {
+            case "US": return 0.10;
+            case "EU": return 0.15;
+            case "APAC": return 0.05;
+            default: return 0.0;
+        }
+    }
+
+    /**
+     * QuoteLineItems priced and built from their lines as they are accessed, copy a batch to build its records once
+     */
+    public static final class QuoteLineItems extends AbstractList<SObject> {
+
+        private final List<OpportunityLine> lines;
+        private final int[] index;
+        private final Map<String, String> opportunityToQuoteMap;
+        private final double discountRate;
+
+        private QuoteLineItems(List<OpportunityLine> lines, int[] index, Map<String, String> opportunityToQuoteMap, double discountRate) {
+            this.lines = lines;
+            this.index = index;
+            this.opportunityToQuoteMap = opportunityToQuoteMap;
+            this.discountRate = discountRate;
+        }
+
+        @Override
+        public SObject get(int i) {
+            OpportunityLine line = line(i);
+            return quoteLineItem(opportunityToQuoteMap.get(line.opportunityId), line, discountRate);
+        }
+
+        /**
+         * Estimated SOAP payload size of the QuoteLineItem at the index (see AdaptiveWriteController.estimateBytes),
+         * without building it
+         * @param i
+         * @return
+         */
+        public long estimateBytes(int i) {
+            OpportunityLine line = line(i);
+            // The type is also a child element of the record
+            return AdaptiveWriteController.estimateBytes("QuoteLineItem")
+                + AdaptiveWriteController.estimateBytes("type", "QuoteLineItem")
+                + AdaptiveWriteController.estimateBytes("QuoteId", opportunityToQuoteMap.get(line.opportunityId))
+                + AdaptiveWriteController.estimateBytes("PricebookEntryId", line.pricebookEntryId)
+                + AdaptiveWriteController.estimateBytes("Quantity", line.quantity)
+                + AdaptiveWriteController.estimateBytes("UnitPrice", unitPrice(line, discountRate));
+        }
+
+        /**
+         * Line the QuoteLineItem at the index is built from
+         * @param i
+         * @return
+         */
+        public OpportunityLine line(int i) {
+            return lines.get(index[i]);
+        }
+
+        @Override
+        public int size() {
+            return index.length;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.heroku.java.services;
 
-import jakarta.annotation.PostConstruct;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.slf4j.Logger;
@@ -9,13 +8,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.redis.connection.Message;
 import org.springframework.data.redis.connection.MessageListener;
-import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.listener.PatternTopic;
-import org.springframework.data.redis.listener.RedisMessageListenerContainer;
-import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
 import org.springframework.stereotype.Service;
 
+import com.heroku.java.config.PooledHttpTransport;
 import com.sforce.async.AsyncApiException;
 import com.sforce.async.BatchInfo;
 import com.sforce.async.BatchStateEnum;
@@ -31,8 +27,15 @@ import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 import com.sforce.ws.ConnectorConfig;
 
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -46,62 +49,102 @@ public class SampleDataWorkerService implements MessageListener {
 
     private static final Logger logger = LoggerFactory.getLogger(SampleDataWorkerService.class);
     private static final int OPPORTUNITY_PRODUCTS_PER_OPPORTUNITY = 2;
+    // Maximum records per Bulk API (v1) batch
+    private static final int BULK_BATCH_SIZE = 10_000;
 
     @Autowired
     private StringRedisTemplate redis;
 
     @Autowired
-    private RedisConnectionFactory redisConnectionFactory;
+    private OpenTelemetry openTelemetry;
 
-    /**
-     * Start listening for messages on the dataQueue
-     * @throws InterruptedException
-     */
-    @PostConstruct
-    public void subscribeToRedisQueue() throws InterruptedException {
-        logger.info("Worker subscribing to Redis queue: dataQueue");
-        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
-        container.setConnectionFactory(redisConnectionFactory);
-        container.addMessageListener(new MessageListenerAdapter(this, "onMessage"), new PatternTopic("dataQueue"));
-        container.afterPropertiesSet();
-        container.start();
-        logger.info("Worker is now listening for messages.");
-    }
+    @Autowired
+    private Tracer tracer;
+
+    @Autowired
+    private JobDeduplicator deduplicator;
+
+    @Autowired
+    private JobBacklog backlog;
+
+    @Autowired
+    private WorkerDrain drain;
+
+    @Autowired
+    private JobResultLedger ledger;
 
     /**
      * Process messages received on the dataQueue
      */
     @Override
     public void onMessage(Message message, byte[] pattern) {
-        String[] messageParts = new String(message.getBody()).split(":", 3);
-        if (messageParts.length < 2) {
+        JobMessage jobMessage;
+        try {
+            jobMessage = JobMessage.fromJson(message.getBody());
+        } catch (IOException e) {
             logger.error("Invalid message format received: {}", message);
             return;
         }
         // Parse message and obtain job id, data operation and connection details
-        String jobId = messageParts[0];
-        String dataOperation = messageParts[1];
-        Integer numberOfOpportunties = messageParts.length == 3 ? Integer.parseInt(messageParts[2]) : 0;
+        String[] messageParts = jobMessage.body.split(":", 2);
+        String jobId = jobMessage.jobId;
+        String dataOperation = messageParts[0];
+        String argument = messageParts.length == 2 ? messageParts[1] : null;
         logger.info("Worker received job with ID: {} for data operation: {}", jobId, dataOperation);
-        String sessionId = redis.opsForValue().get("salesforce:session:" + jobId);
-        String instanceUrl = redis.opsForValue().get("salesforce:instance:" + jobId);
-        PartnerConnection connection = createSalesforceConnection(sessionId, instanceUrl);
-        if (connection == null) {
-            logger.error("Failed to reconnect to Salesforce for Job ID: {}", jobId);
+        // Other workers receive the same message so a draining worker leaves it to them
+        if (!drain.accept(jobId)) {
+            return;
+        }
+        // Continue the trace started by the web request that enqueued the job
+        Span span = tracer.spanBuilder("data " + dataOperation).setParent(jobMessage.traceContext(openTelemetry))
+            .setSpanKind(SpanKind.CONSUMER)
+            .setAttribute("job.id", jobId)
+            .setAttribute("job.queue_wait_ms", jobMessage.queueWaitMillis())
+            .startSpan();
+        try (Scope scope = span.makeCurrent()) {
+            processDataOperation(jobId, dataOperation, argument);
+        } finally {
+            span.end();
+            drain.done(jobId);
+        }
+    }
+
+    /**
+     * Reconnects to Salesforce and runs the requested data operation
+     * @param jobId
+     * @param dataOperation
+     * @param argument number of Opportunities to create, or job ID to roll back
+     */
+    private void processDataOperation(String jobId, String dataOperation, String argument) {
+        // Run each job once when several workers receive the message
+        if (!deduplicator.claim(jobId)) {
             return;
         }
+        backlog.started(jobId);
         try {
+            String sessionId = redis.opsForValue().get("salesforce:session:" + jobId);
+            String instanceUrl = redis.opsForValue().get("salesforce:instance:" + jobId);
+            PartnerConnection connection = createSalesforceConnection(sessionId, instanceUrl);
+            if (connection == null) {
+                logger.error("Failed to reconnect to Salesforce for Job ID: {}", jobId);
+                return;
+            }
+            PooledHttpTransport.prewarm(connection.getConfig(), 1);
             // Process either creation of sample data or deletion of it via Salesforce Bulk API
             BulkConnection bulkConnection = getBulkConnection(connection);
             if ("create".equalsIgnoreCase(dataOperation)) {
-                handleCreateOperation(connection, bulkConnection, numberOfOpportunties);
+                handleCreateOperation(connection, bulkConnection, argument == null ? 0 : Integer.parseInt(argument));
             } else if ("delete".equalsIgnoreCase(dataOperation)) {
                 handleDeleteOperation(connection, bulkConnection);
+            } else if ("rollback".equalsIgnoreCase(dataOperation)) {
+                handleRollbackOperation(bulkConnection, jobId, argument);
             } else {
                 logger.warn("Unknown data operation received: {}", dataOperation);
             }
         } catch (Exception e) {
             logger.error("Error processing bulk operation: {}", e.getMessage(), e);
+        } finally {
+            backlog.finished(jobId);
         }
     }
 
@@ -158,7 +201,7 @@ public class SampleDataWorkerService implements MessageListener {
             deleteJob.setOperation(OperationEnum.hardDelete);
             deleteJob.setContentType(ContentType.CSV);
             deleteJob = bulkConnection.createJob(deleteJob);
-            ByteArrayOutputStream csvStream = generateOpportunityDeletionCSV(opportunityIds);            
+            ByteArrayOutputStream csvStream = generateDeletionCSV(opportunityIds);            
             submitBatch(bulkConnection, deleteJob, csvStream);    
             waitForBulkJobCompletion(bulkConnection, deleteJob.getId());
             closeBulkJob(bulkConnection, deleteJob.getId());
@@ -168,6 +211,40 @@ public class SampleDataWorkerService implements MessageListener {
         }
     }
 
+    /**
+     * Deletes the Quotes created by a Quote generation job, their QuoteLineItems are deleted with them.
+     * The Quote Ids are read from the job ledger rather than queried and deleted in parallel Bulk API batches.
+     * @param bulkConnection
+     * @param jobId
+     * @param rollbackJobId Quote generation job to roll back
+     */
+    private void handleRollbackOperation(BulkConnection bulkConnection, String jobId, String rollbackJobId) {
+        try {
+            List<String> quoteIds = ledger.createdIds(rollbackJobId, "Quote");
+            if (quoteIds.isEmpty()) {
+                logger.info("No Quotes recorded for job {}, nothing to roll back.", rollbackJobId);
+                return;
+            }
+            logger.info("Starting job to delete {} Quotes created by job {}.", quoteIds.size(), rollbackJobId);
+            JobInfo deleteJob = new JobInfo();
+            deleteJob.setObject("Quote");
+            deleteJob.setOperation(OperationEnum.hardDelete);
+            deleteJob.setContentType(ContentType.CSV);
+            deleteJob = bulkConnection.createJob(deleteJob);
+            // Batches of a job are processed in parallel
+            for (int start = 0; start < quoteIds.size(); start += BULK_BATCH_SIZE) {
+                submitBatch(bulkConnection, deleteJob, generateDeletionCSV(quoteIds.subList(start, Math.min(quoteIds.size(), start + BULK_BATCH_SIZE))));
+            }
+            closeBulkJob(bulkConnection, deleteJob.getId());
+            long deleted = waitForBulkJobCompletion(bulkConnection, deleteJob.getId());
+            backlog.progress(jobId, deleted);
+            ledger.recordRolledBack(rollbackJobId, "Quote", deleted);
+            logger.info("Rolled back job {}, deleted {} of {} Quotes.", rollbackJobId, deleted, quoteIds.size());
+        } catch (Exception e) {
+            logger.error("Error in bulk rollback operation: {}", e.getMessage(), e);
+        }
+    }
+
     /**
      * Queries the Salesforce org for sample Opportunities
      * @param connection
@@ -258,18 +335,18 @@ public class SampleDataWorkerService implements MessageListener {
     }
     
     /**
-     * Generate a list of Opportunities to delete to pass to the Bulk API for processing
-     * @param opportunityIds
+     * Generate a list of records (e.g. Opportunities or Quotes) to delete to pass to the Bulk API for processing
+     * @param recordIds
      * @return
      * @throws Exception
      */
-    private ByteArrayOutputStream generateOpportunityDeletionCSV(List<String> opportunityIds) throws Exception {
+    private ByteArrayOutputStream generateDeletionCSV(List<String> recordIds) throws Exception {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         CSVPrinter csvPrinter = new CSVPrinter(
             new OutputStreamWriter(outputStream, StandardCharsets.UTF_8),
             CSVFormat.DEFAULT.builder().setHeader("Id").build());    
-        for (String opportunityId : opportunityIds) {
-            csvPrinter.printRecord(opportunityId);
+        for (String recordId : recordIds) {
+            csvPrinter.printRecord(recordId);
         }
         csvPrinter.flush();
         csvPrinter.close();
@@ -336,26 +413,44 @@ public class SampleDataWorkerService implements MessageListener {
     }
 
     /**
-     * Wait for a Bulk API job to complete and output status information to the log
+     * Wait for all batches of a Bulk API job to complete and output status information to the log
      * @param bulkConnection
      * @param jobId
+     * @return records processed successfully
      * @throws Exception
      */
-    private void waitForBulkJobCompletion(BulkConnection bulkConnection, String jobId) throws Exception {
+    private long waitForBulkJobCompletion(BulkConnection bulkConnection, String jobId) throws Exception {
+        Span span = tracer.spanBuilder("bulk job wait").setAttribute("salesforce.bulk_job_id", jobId).startSpan();
+        try {
+            return pollBulkJobCompletion(bulkConnection, jobId, span);
+        } finally {
+            span.end();
+        }
+    }
+
+    private long pollBulkJobCompletion(BulkConnection bulkConnection, String jobId, Span span) throws Exception {
         while (true) {
             try {
                 Thread.sleep(5000);
                 BatchInfo[] batchInfoList = bulkConnection.getBatchInfoList(jobId).getBatchInfo();
+                boolean complete = true;
+                long processed = 0;
+                long failed = 0;
                 for (BatchInfo bi : batchInfoList) {
                     logger.info("Batch {} - State: {} - Records Processed: {} - Records Failed: {}", bi.getId(), bi.getState(), bi.getNumberRecordsProcessed(), bi.getNumberRecordsFailed());
-                    if (bi.getState() == BatchStateEnum.Completed || bi.getState() == BatchStateEnum.Failed) {
-                        logger.info("Batch processing complete.");
-                        return;
-                    }
+                    complete &= bi.getState() == BatchStateEnum.Completed || bi.getState() == BatchStateEnum.Failed || bi.getState() == BatchStateEnum.NotProcessed;
+                    processed += bi.getNumberRecordsProcessed();
+                    failed += bi.getNumberRecordsFailed();
+                }
+                if (complete) {
+                    logger.info("Batch processing complete.");
+                    span.setAttribute("salesforce.records", processed);
+                    span.setAttribute("salesforce.failures", failed);
+                    return processed - failed;
                 }
             } catch (AsyncApiException e) {
                 logger.error("Error fetching batch status: {}", e.getMessage());
-                return;
+                return 0;
             }
         }
     }        
@@ -391,9 +486,7 @@ public class SampleDataWorkerService implements MessageListener {
      */
     private PartnerConnection createSalesforceConnection(String sessionId, String instanceUrl) {
         try {
-            ConnectorConfig config = new ConnectorConfig();
-            config.setServiceEndpoint(instanceUrl);
-            config.setSessionId(sessionId);
+            ConnectorConfig config = PooledHttpTransport.connectorConfig(instanceUrl, sessionId);
             return Connector.newConnection(config);
         } catch (Exception e) {
             logger.error("Error creating Salesforce connection: {}", e.getMessage(), e);
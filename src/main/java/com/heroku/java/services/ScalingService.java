@@ -0,0 +1,62 @@
+package com.heroku.java.services;
+
+import io.swagger.v3.oas.annotations.Hidden;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Worker scaling recommendation for an external autoscaler. Served outside /api/ as it is not called by Salesforce
+ * and reports the backlog of all orgs, so it is authenticated with its own bearer token (scaling.api-token) rather
+ * than the Salesforce client context, and is not part of the API published to the org.
+ */
+@Hidden
+@RestController
+@Profile("!worker & !replay")
+public class ScalingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScalingService.class);
+
+    @Autowired
+    private JobBacklog backlog;
+
+    @Value("${scaling.api-token:}")
+    private String apiToken;
+
+    /**
+     * Pending and running jobs, estimated remaining records, records per second per worker and the number of worker
+     * dynos needed to drain the backlog within the target time
+     * @param authorization Bearer followed by the scaling.api-token
+     * @return
+     */
+    @GetMapping("/scaling")
+    public CompletableFuture<JobBacklog.ScalingRecommendation> scaling(@RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization) {
+        if (apiToken.isBlank()) {
+            // Disabled unless a token is configured
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        String expected = "Bearer " + apiToken;
+        if (authorization == null || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), authorization.getBytes(StandardCharsets.UTF_8))) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED);
+        }
+        return backlog.recommend()
+            .onErrorMap(e -> {
+                logger.error("Error interacting with Redis: {}", e.getMessage(), e);
+                return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to compute the scaling recommendation due to an internal error.");
+            })
+            .toFuture();
+    }
+}
@@ -0,0 +1,75 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.sobject.SObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Replays Quote and QuoteLineItem building and pricing over an exported OpportunitySnapshot without calling Salesforce,
+ * to profile and tune the pricing stage against production shaped data. Quote Ids are synthetic.
+ */
+@Component
+@Profile("replay")
+public class SnapshotReplayRunner implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotReplayRunner.class);
+
+    @Value("${snapshot.replay-file}")
+    private String replayFile;
+
+    @Value("${snapshot.replay-iterations:5}")
+    private int iterations;
+
+    @Value("${snapshot.replay-consolidate-lines:false}")
+    private boolean consolidateLines;
+
+    @Value("${pricing.volume-tiers:}")
+    private String volumeTiers;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        try (OpportunitySnapshot snapshot = OpportunitySnapshot.open(Path.of(replayFile))) {
+            long scanStart = System.nanoTime();
+            List<String> opportunityIds = snapshot.opportunityIds();
+            logger.info("Replaying {} Opportunities and {} lines from {} (Opportunity scan {} ms)",
+                opportunityIds.size(), snapshot.lineCount(), replayFile, (System.nanoTime() - scanStart) / 1_000_000);
+            for (int iteration = 1; iteration <= iterations; iteration++) {
+                long startNanos = System.nanoTime();
+                // Build Quotes and map them to Opportunities as the worker does after creating them
+                List<SObject> quotes = new ArrayList<>(opportunityIds.size());
+                Map<String, String> opportunityToQuoteMap = new HashMap<>(opportunityIds.size() * 2);
+                for (String opportunityId : opportunityIds) {
+                    quotes.add(QuotePricing.quote(opportunityId));
+                    opportunityToQuoteMap.put(opportunityId, syntheticQuoteId(opportunityToQuoteMap.size()));
+                }
+                // Price and build every QuoteLineItem, optionally consolidating lines as the worker does
+                List<OpportunityLine> lines = consolidateLines
+                    ? QuotePricing.consolidate(snapshot.lines(), QuotePricing.volumeTiers(volumeTiers))
+                    : snapshot.lines();
+                List<SObject> quoteLineItems = QuotePricing.quoteLineItems(lines, opportunityToQuoteMap, QuotePricing.discountForRegion("US"));
+                double total = 0;
+                for (SObject quoteLineItem : quoteLineItems) {
+                    total += (Double) quoteLineItem.getField("UnitPrice") * (Double) quoteLineItem.getField("Quantity");
+                }
+                long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+                logger.info("Replay {}: {} Quotes and {} QuoteLineItems in {} ms ({} lines/s), total {}",
+                    iteration, quotes.size(), quoteLineItems.size(), elapsedNanos / 1_000_000,
+                    quoteLineItems.size() * 1_000_000_000L / elapsedNanos, String.format("%.2f", total));
+            }
+        }
+    }
+
+    private static String syntheticQuoteId(int index) {
+        String digits = Integer.toString(index);
+        return "0Q0" + "0".repeat(15 - digits.length()) + digits;
+    }
+}
@@ -0,0 +1,119 @@
+package com.heroku.java.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Drains the worker when it is shut down (SIGTERM on restarts, deploys and scale down). New jobs are left to other
+ * workers and running jobs stop before their next unit of work, in-flight create calls complete and the job is
+ * checkpointed and re-queued. Shutdown waits for running jobs up to the drain timeout, which should be within the
+ * dyno's shutdown grace period (30 seconds on Heroku). Jobs still running when it times out are passed to the
+ * timeout handler to be released before the process exits.
+ */
+@Service
+@Profile("worker")
+public class WorkerDrain implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkerDrain.class);
+
+    @Value("${worker.drain.timeout-seconds:25}")
+    private long timeoutSeconds;
+
+    private final Set<String> running = new HashSet<>();
+    private volatile boolean started;
+    private volatile boolean draining;
+    private volatile Consumer<Set<String>> timeoutHandler;
+
+    /**
+     * Registers a job received by the worker
+     * @param jobId
+     * @return false if the worker is draining and the job should be left to other workers
+     */
+    public synchronized boolean accept(String jobId) {
+        if (draining) {
+            logger.info("Worker draining, leaving job {} to other workers", jobId);
+            return false;
+        }
+        running.add(jobId);
+        return true;
+    }
+
+    /**
+     * Unregisters a job once the worker has finished, cancelled or handed off the job
+     * @param jobId
+     */
+    public synchronized void done(String jobId) {
+        running.remove(jobId);
+        notifyAll();
+    }
+
+    /**
+     * Sets the handler given the jobs still running when the drain times out
+     * @param timeoutHandler
+     */
+    public void onTimeout(Consumer<Set<String>> timeoutHandler) {
+        this.timeoutHandler = timeoutHandler;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Throws JobHandoffException if the worker is draining
+     * @param jobId
+     */
+    public void throwIfDraining(String jobId) {
+        if (draining) {
+            throw new JobHandoffException(jobId);
+        }
+    }
+
+    @Override
+    public void start() {
+        started = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        draining = true;
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000;
+        logger.info("Worker draining {} running jobs", running.size());
+        try {
+            while (!running.isEmpty() && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (running.isEmpty()) {
+            logger.info("Worker drained");
+        } else {
+            logger.warn("Worker drain timed out with jobs still running: {}", running);
+            if (timeoutHandler != null) {
+                timeoutHandler.accept(Set.copyOf(running));
+            }
+        }
+        started = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return started;
+    }
+
+    // Stops after the listener container (Integer.MAX_VALUE) has stopped delivering messages and before the Redis
+    // connection factory (phase 0) used to checkpoint and re-queue jobs
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE - 1;
+    }
+}
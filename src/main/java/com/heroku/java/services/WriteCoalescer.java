@@ -0,0 +1,298 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.sobject.SObject;
+
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges partly filled create batches from concurrent jobs for the same org into full create calls.
+ * Batches wait up to the linger time for batches from other jobs, are sent once the pending records fill a call
+ * and the results are routed back to each job in the order of its records. Only batches sharing a session are
+ * merged so records are always created by the user that requested the job. Jobs register while they write records
+ * of a type and a lane only waits for other jobs while more than one job is registered for it, as jobs with different
+ * sessions never merge a job writing alone sends its batch at once.
+ * Calls are subject to the org's AdaptiveWriteController limit and reported as the writes.coalesce.* metrics.
+ */
+@Service
+@Profile("worker")
+public class WriteCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteCoalescer.class);
+
+    @Autowired
+    private AdaptiveWriteController writeController;
+
+    @Autowired
+    private Tracer tracer;
+
+    @Autowired
+    private Meter meter;
+
+    @Value("${writes.coalesce.enabled:true}")
+    private boolean enabled;
+
+    @Value("${writes.coalesce.linger-ms:200}")
+    private long lingerMillis;
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    // Jobs registered to write records by lane, lanes without registrations are not held
+    private final Map<String, Integer> writers = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "write-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "write-coalescer-create");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LongHistogram jobsHistogram;
+    private LongHistogram recordsHistogram;
+
+    @PostConstruct
+    public void createInstruments() {
+        jobsHistogram = meter.histogramBuilder("writes.coalesce.jobs").ofLongs()
+            .setDescription("Jobs whose records were merged into each coalesced create request").build();
+        recordsHistogram = meter.histogramBuilder("writes.coalesce.records").ofLongs()
+            .setDescription("Records per coalesced create request").build();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Send what is pending rather than failing the jobs waiting on it
+        List.copyOf(lanes.values()).forEach(Lane::flush);
+        scheduler.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * Returns true if a batch of the given size should be sent via the coalescer rather than on its own
+     * @param records
+     * @return
+     */
+    public boolean shouldCoalesce(int records) {
+        return enabled && records < writeController.maxBatchRecords();
+    }
+
+    /**
+     * Registers a job that is about to create records of the type, so that batches of other jobs in the same lane wait
+     * for its records. Close the registration once the job's create calls have completed.
+     * @param connection connection of the job
+     * @param sObjectType
+     * @return
+     */
+    public Registration register(PartnerConnection connection, String sObjectType) {
+        String laneKey = laneKey(connection, sObjectType);
+        writers.merge(laneKey, 1, Integer::sum);
+        return () -> {
+            Integer remaining = writers.computeIfPresent(laneKey, (key, count) -> count > 1 ? count - 1 : null);
+            Lane lane = lanes.get(laneKey);
+            // Records waiting for this job are sent rather than left for the linger time
+            if (lane != null && (remaining == null || remaining <= 1)) {
+                lane.flush();
+            }
+        };
+    }
+
+    /**
+     * Creates the records together with records of the same type submitted by other jobs for the org
+     * @param connection connection of the job submitting the records
+     * @param records no more than one create call of records of one SObject type
+     * @return completes with results in the same order as records, or exceptionally if the create call failed
+     */
+    public CompletableFuture<SaveResult[]> create(PartnerConnection connection, List<SObject> records) {
+        String laneKey = laneKey(connection, records.get(0).getType());
+        Pending pending = new Pending(records, Span.current().getSpanContext());
+        lanes.computeIfAbsent(laneKey, key -> new Lane(key, connection)).add(pending);
+        return pending.future;
+    }
+
+    private static String laneKey(PartnerConnection connection, String sObjectType) {
+        String serviceEndpoint = connection.getConfig().getServiceEndpoint();
+        return URI.create(serviceEndpoint).getHost() + "|" + connection.getConfig().getSessionId() + "|" + sObjectType;
+    }
+
+    /**
+     * Registration of a job writing records to a lane, see register
+     */
+    public interface Registration extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Records submitted by one job and the future completed with their results
+     */
+    private static class Pending {
+
+        private final List<SObject> records;
+        private final SpanContext spanContext;
+        private final long bytes;
+        private final CompletableFuture<SaveResult[]> future = new CompletableFuture<>();
+
+        private Pending(List<SObject> records, SpanContext spanContext) {
+            this.records = records;
+            this.spanContext = spanContext;
+            this.bytes = records.stream().mapToLong(AdaptiveWriteController::estimateBytes).sum();
+        }
+    }
+
+    /**
+     * Records pending for one org, session and SObject type
+     */
+    private class Lane {
+
+        private final String key;
+        private final PartnerConnection connection;
+        private final AdaptiveWriteController.OrgWriteLimit writeLimit;
+        private final List<Pending> pending = new ArrayList<>();
+        private int pendingRecords;
+        private ScheduledFuture<?> lingerTask;
+
+        private Lane(String key, PartnerConnection connection) {
+            this.key = key;
+            this.connection = connection;
+            this.writeLimit = writeController.forOrg(connection.getConfig().getServiceEndpoint());
+        }
+
+        private synchronized void add(Pending job) {
+            pending.add(job);
+            pendingRecords += job.records.size();
+            if (pendingRecords >= writeController.maxBatchRecords()) {
+                send(false);
+            }
+            // No other job is writing to the lane, so there is nothing to wait for
+            if (writers.getOrDefault(key, 0) <= 1) {
+                flush();
+                return;
+            }
+            if (!pending.isEmpty() && lingerTask == null) {
+                lingerTask = scheduler.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Sends all pending records, once the linger time has passed or no other job is writing to the lane
+         */
+        private synchronized void flush() {
+            if (lingerTask != null) {
+                lingerTask.cancel(false);
+                lingerTask = null;
+            }
+            send(true);
+            // Sessions change between jobs so drop the idle lane, a job still adding to it schedules its own flush
+            lanes.remove(key, this);
+        }
+
+        /**
+         * Packs the pending records into as few create calls as the record and payload limits allow, without
+         * splitting the records of a job across calls, and sends them
+         * @param all false to keep the records of the last call pending if it is not full
+         */
+        private void send(boolean all) {
+            List<Pending> call = new ArrayList<>();
+            int callRecords = 0;
+            long callBytes = 0;
+            for (Pending job : pending) {
+                boolean full = callRecords + job.records.size() > writeController.maxBatchRecords()
+                    || (!call.isEmpty() && callBytes + job.bytes > writeController.maxBatchBytes());
+                if (full) {
+                    sendCall(call);
+                    call = new ArrayList<>();
+                    callRecords = 0;
+                    callBytes = 0;
+                }
+                call.add(job);
+                callRecords += job.records.size();
+                callBytes += job.bytes;
+            }
+            pending.clear();
+            pendingRecords = 0;
+            if (call.isEmpty()) {
+                return;
+            }
+            if (all || callRecords >= writeController.maxBatchRecords()) {
+                sendCall(call);
+            } else {
+                pending.addAll(call);
+                pendingRecords = callRecords;
+            }
+        }
+
+        private void sendCall(List<Pending> call) {
+            List<SObject> records = new ArrayList<>();
+            call.forEach(job -> records.addAll(job.records));
+            jobsHistogram.record(call.size());
+            recordsHistogram.record(records.size());
+            logger.debug("Coalesced {} {} records from {} jobs into one create request", records.size(), records.get(0).getType(), call.size());
+            executor.execute(() -> {
+                // The request belongs to several jobs so link to each job's trace
+                SpanBuilder spanBuilder = tracer.spanBuilder("coalesced create " + records.get(0).getType())
+                    .setNoParent()
+                    .setAttribute("salesforce.records", records.size())
+                    .setAttribute("writes.coalesce.jobs", call.size());
+                call.stream().filter(job -> job.spanContext.isValid()).forEach(job -> spanBuilder.addLink(job.spanContext));
+                Span span = spanBuilder.startSpan();
+                try {
+                    SaveResult[] results;
+                    long startNanos = writeLimit.acquire();
+                    try {
+                        results = connection.create(records.toArray(new SObject[0]));
+                        writeLimit.release(startNanos, AdaptiveWriteController.isOverloaded(results, null));
+                    } catch (Exception e) {
+                        writeLimit.release(startNanos, AdaptiveWriteController.isOverloaded(null, e));
+                        throw e;
+                    }
+                    int offset = 0;
+                    for (Pending job : call) {
+                        job.future.complete(Arrays.copyOfRange(results, offset, offset + job.records.size()));
+                        offset += job.records.size();
+                    }
+                } catch (Exception e) {
+                    span.recordException(e);
+                    span.setStatus(StatusCode.ERROR);
+                    call.forEach(job -> job.future.completeExceptionally(e));
+                } finally {
+                    span.end();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.StatusCode;
+import com.sforce.soap.partner.sobject.SObject;
+
+import io.opentelemetry.api.OpenTelemetry;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveWriteControllerTest {
+
+    private static final String ENDPOINT = "https://example.my.salesforce.com/services/Soap/u/62.0/00D000000000001";
+
+    private AdaptiveWriteController controller;
+
+    @BeforeEach
+    void createController() {
+        controller = new AdaptiveWriteController();
+        ReflectionTestUtils.setField(controller, "meter", OpenTelemetry.noop().getMeter("test"));
+        ReflectionTestUtils.setField(controller, "maxBatchRecords", 3);
+        ReflectionTestUtils.setField(controller, "maxBatchBytes", 1_000_000);
+        ReflectionTestUtils.setField(controller, "minConcurrency", 1);
+        ReflectionTestUtils.setField(controller, "initialConcurrency", 4);
+        ReflectionTestUtils.setField(controller, "maxConcurrency", 5);
+        ReflectionTestUtils.setField(controller, "targetLatencyMillis", 10_000L);
+        controller.createInstruments();
+    }
+
+    @Test
+    void partitionsByRecordCount() {
+        List<List<SObject>> batches = controller.partition(quotes(7, ""));
+
+        assertEquals(List.of(3, 3, 1), batches.stream().map(List::size).toList());
+    }
+
+    @Test
+    void partitionsByEstimatedBytes() {
+        List<SObject> records = quotes(3, "x".repeat(100));
+        long recordBytes = AdaptiveWriteController.estimateBytes(records.get(0));
+        ReflectionTestUtils.setField(controller, "maxBatchBytes", (int) (recordBytes * 2));
+
+        List<List<SObject>> batches = controller.partition(records);
+
+        assertEquals(List.of(2, 1), batches.stream().map(List::size).toList());
+    }
+
+    @Test
+    void sendsRecordLargerThanMaxBytesAlone() {
+        ReflectionTestUtils.setField(controller, "maxBatchBytes", 10);
+
+        List<List<SObject>> batches = controller.partition(quotes(2, ""));
+
+        assertEquals(List.of(1, 1), batches.stream().map(List::size).toList());
+    }
+
+    @Test
+    void partitionsNoRecordsIntoNoBatches() {
+        assertTrue(controller.partition(List.of()).isEmpty());
+    }
+
+    @Test
+    void sharesLimitPerOrgHost() {
+        AdaptiveWriteController.OrgWriteLimit limit = controller.forOrg(ENDPOINT);
+
+        assertSame(limit, controller.forOrg("https://example.my.salesforce.com/services/Soap/u/61.0"));
+        assertNotSame(limit, controller.forOrg("https://other.my.salesforce.com/services/Soap/u/62.0"));
+        assertEquals(4, limit.limit());
+    }
+
+    @Test
+    void evictsIdleLimits() throws InterruptedException {
+        ReflectionTestUtils.setField(controller, "idleEvictionSeconds", 60L);
+        AdaptiveWriteController.OrgWriteLimit idle = controller.forOrg(ENDPOINT);
+        AdaptiveWriteController.OrgWriteLimit busy = controller.forOrg("https://other.my.salesforce.com/services/Soap/u/62.0");
+        busy.acquire();
+
+        controller.evictIdle(System.nanoTime() + TimeUnit.MINUTES.toNanos(2));
+
+        assertNotSame(idle, controller.forOrg(ENDPOINT));
+        assertSame(busy, controller.forOrg("https://other.my.salesforce.com/services/Soap/u/62.0"));
+    }
+
+    @Test
+    void keepsRecentlyUsedLimits() {
+        ReflectionTestUtils.setField(controller, "idleEvictionSeconds", 60L);
+        AdaptiveWriteController.OrgWriteLimit limit = controller.forOrg(ENDPOINT);
+
+        controller.evictIdle(System.nanoTime() + TimeUnit.SECONDS.toNanos(30));
+
+        assertSame(limit, controller.forOrg(ENDPOINT));
+    }
+
+    @Test
+    void increasesAfterFullWindowOfSuccesses() throws InterruptedException {
+        AdaptiveWriteController.OrgWriteLimit limit = controller.forOrg(ENDPOINT);
+
+        for (int i = 0; i < 3; i++) {
+            limit.release(limit.acquire(), false);
+        }
+        assertEquals(4, limit.limit());
+        limit.release(limit.acquire(), false);
+        assertEquals(5, limit.limit());
+
+        for (int i = 0; i < 10; i++) {
+            limit.release(limit.acquire(), false);
+        }
+        assertEquals(5, limit.limit());
+    }
+
+    @Test
+    void halvesOnOverloadOncePerWindow() throws InterruptedException {
+        AdaptiveWriteController.OrgWriteLimit limit = controller.forOrg(ENDPOINT);
+        long first = limit.acquire();
+        long second = limit.acquire();
+
+        limit.release(first, true);
+        assertEquals(2, limit.limit());
+        // Started before the decrease, so sent at the old limit
+        limit.release(second, true);
+        assertEquals(2, limit.limit());
+
+        limit.release(limit.acquire(), true);
+        assertEquals(1, limit.limit());
+        limit.release(limit.acquire(), true);
+        assertEquals(1, limit.limit());
+    }
+
+    @Test
+    void decreasesByQuarterOnHighLatency() throws InterruptedException {
+        ReflectionTestUtils.setField(controller, "targetLatencyMillis", -1L);
+        AdaptiveWriteController.OrgWriteLimit limit = controller.forOrg(ENDPOINT);
+
+        limit.release(limit.acquire(), false);
+        assertEquals(3, limit.limit());
+        limit.release(limit.acquire(), false);
+        assertEquals(2, limit.limit());
+    }
+
+    @Test
+    void abandonFreesSlotWithoutAdjusting() throws InterruptedException {
+        ReflectionTestUtils.setField(controller, "initialConcurrency", 1);
+        AdaptiveWriteController.OrgWriteLimit limit = controller.forOrg(ENDPOINT);
+
+        limit.acquire();
+        limit.abandon();
+        limit.acquire();
+
+        assertEquals(1, limit.limit());
+    }
+
+    @Test
+    void detectsOverloadedResults() {
+        assertTrue(AdaptiveWriteController.isOverloaded(results(StatusCode.UNABLE_TO_LOCK_ROW), null));
+        assertFalse(AdaptiveWriteController.isOverloaded(results(StatusCode.REQUIRED_FIELD_MISSING), null));
+        assertFalse(AdaptiveWriteController.isOverloaded(new SaveResult[] { success() }, null));
+    }
+
+    @Test
+    void failedResultsKeepRecordsAligned() {
+        SaveResult[] results = AdaptiveWriteController.failedResults(2, new IllegalStateException("timed out"));
+
+        assertEquals(2, results.length);
+        assertFalse(results[1].isSuccess());
+        assertEquals("timed out", results[1].getErrors()[0].getMessage());
+    }
+
+    private static List<SObject> quotes(int count, String description) {
+        List<SObject> quotes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SObject quote = new SObject("Quote");
+            quote.setField("OpportunityId", "006000000000001AAA");
+            quote.setField("Description", description);
+            quotes.add(quote);
+        }
+        return quotes;
+    }
+
+    private static SaveResult[] results(StatusCode statusCode) {
+        com.sforce.soap.partner.Error error = new com.sforce.soap.partner.Error();
+        error.setStatusCode(statusCode);
+        SaveResult failure = new SaveResult();
+        failure.setSuccess(false);
+        failure.setErrors(new com.sforce.soap.partner.Error[] { error });
+        return new SaveResult[] { success(), failure };
+    }
+
+    private static SaveResult success() {
+        SaveResult success = new SaveResult();
+        success.setSuccess(true);
+        success.setErrors(new com.sforce.soap.partner.Error[0]);
+        return success;
+    }
+}
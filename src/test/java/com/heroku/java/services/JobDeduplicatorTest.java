@@ -0,0 +1,52 @@
+package com.heroku.java.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobDeduplicatorTest {
+
+    private static final String INSTANCE_URL = "https://example.my.salesforce.com";
+
+    private final JobDeduplicator deduplicator = new JobDeduplicator();
+
+    @Test
+    void lowerCasesTextOutsideLiterals() {
+        assertEquals("stagename = 'Closed Won'", JobDeduplicator.normalize("StageName = 'Closed Won'"));
+    }
+
+    @Test
+    void collapsesWhitespaceOutsideLiterals() {
+        assertEquals("amount > 100 and name like 'Big  Deal\t%'",
+            JobDeduplicator.normalize("  Amount\n>  100\r\n\tAND Name LIKE 'Big  Deal\t%'  "));
+    }
+
+    @Test
+    void keepsEscapedQuotesInsideLiterals() {
+        assertEquals("name = 'O\\'Brien  Co' and stagename = 'Won'",
+            JobDeduplicator.normalize("Name = 'O\\'Brien  Co'  AND StageName = 'Won'"));
+    }
+
+    @Test
+    void normalizesMissingClauseToEmpty() {
+        assertEquals("", JobDeduplicator.normalize(null));
+        assertEquals("", JobDeduplicator.normalize("  \n "));
+    }
+
+    @Test
+    void matchesEquivalentClauses() {
+        assertEquals(
+            deduplicator.flightKey(INSTANCE_URL, "Id IN (SELECT OpportunityId FROM OpportunityLineItem)", false),
+            deduplicator.flightKey(INSTANCE_URL + "/services/Soap/u/62.0", "id in  (select opportunityid\nfrom OpportunityLineItem) ", false));
+    }
+
+    @Test
+    void separatesDifferentWork() {
+        String key = deduplicator.flightKey(INSTANCE_URL, "StageName = 'Closed Won'", false);
+
+        assertTrue(key.startsWith("job:flight:"));
+        assertNotEquals(key, deduplicator.flightKey(INSTANCE_URL, "StageName = 'closed won'", false));
+        assertNotEquals(key, deduplicator.flightKey(INSTANCE_URL, "StageName = 'Closed Won'", true));
+        assertNotEquals(key, deduplicator.flightKey("https://other.my.salesforce.com", "StageName = 'Closed Won'", false));
+    }
+}
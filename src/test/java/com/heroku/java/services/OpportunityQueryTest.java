@@ -0,0 +1,24 @@
+package com.heroku.java.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpportunityQueryTest {
+
+    @Test
+    void detectsOrderAndLimitClauses() {
+        assertTrue(OpportunityQuery.ordersOrLimits("StageName = 'Closed Won' ORDER BY CreatedDate"));
+        assertTrue(OpportunityQuery.ordersOrLimits("Amount > 100\norder\tby Amount DESC"));
+        assertTrue(OpportunityQuery.ordersOrLimits("Amount > 100 LIMIT 10"));
+        assertTrue(OpportunityQuery.ordersOrLimits("Amount > 100 ORDER BY Id Limit 10 OFFSET 20"));
+    }
+
+    @Test
+    void ignoresKeywordsInLiteralsAndNames() {
+        assertFalse(OpportunityQuery.ordersOrLimits("Name = 'Order by phone, no limit'"));
+        assertFalse(OpportunityQuery.ordersOrLimits("Name = 'O\\'Brien limit' AND Limit__c > 5"));
+        assertFalse(OpportunityQuery.ordersOrLimits("Id IN (SELECT OpportunityId FROM OpportunityLineItem)"));
+        assertFalse(OpportunityQuery.ordersOrLimits(null));
+    }
+}
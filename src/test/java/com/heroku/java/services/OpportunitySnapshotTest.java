@@ -0,0 +1,126 @@
+package com.heroku.java.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpportunitySnapshotTest {
+
+    private static final String OPPORTUNITY_1 = "006000000000001AAA";
+    private static final String OPPORTUNITY_2 = "006000000000002"; // 15 character Id
+    private static final String OPPORTUNITY_3 = "006000000000003AAA";
+    private static final String PRICEBOOK_ENTRY_1 = "01u000000000001AAA";
+    private static final String PRICEBOOK_ENTRY_2 = "01u000000000002";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripsLinesAndOpportunitiesWithoutLines() throws IOException {
+        Map<String, List<OpportunityLine>> extracted = new LinkedHashMap<>();
+        extracted.put(OPPORTUNITY_1, List.of(
+            new OpportunityLine("00k000000000001AAA", OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 2, 10.5),
+            new OpportunityLine("00k000000000002", OPPORTUNITY_1, PRICEBOOK_ENTRY_2, 1, 99.99)));
+        extracted.put(OPPORTUNITY_2, List.of());
+        extracted.put(OPPORTUNITY_3, List.of());
+        Path path = OpportunitySnapshot.path(directory.toString(), "job");
+        OpportunitySnapshot.write(path, OpportunityLines.of(extracted));
+
+        try (OpportunitySnapshot snapshot = OpportunitySnapshot.open(path)) {
+            assertEquals(2, snapshot.lineCount());
+            assertEquals(List.of(OPPORTUNITY_1, OPPORTUNITY_2, OPPORTUNITY_3), snapshot.opportunityIds());
+
+            OpportunityLine first = snapshot.line(0);
+            assertEquals("00k000000000001AAA", first.id);
+            assertEquals(OPPORTUNITY_1, first.opportunityId);
+            assertEquals(PRICEBOOK_ENTRY_1, first.pricebookEntryId);
+            assertEquals(2, first.quantity);
+            assertEquals(10.5, first.unitPrice);
+
+            OpportunityLine second = snapshot.lines().get(1);
+            assertEquals("00k000000000002", second.id);
+            assertEquals(PRICEBOOK_ENTRY_2, second.pricebookEntryId);
+            assertEquals(99.99, second.unitPrice);
+            assertThrows(IndexOutOfBoundsException.class, () -> snapshot.line(2));
+        }
+        assertTrue(Files.exists(path));
+    }
+
+    @Test
+    void roundTripsLinesWithoutId() throws IOException {
+        Path path = directory.resolve("consolidated.snapshot");
+        try (OpportunitySnapshot.Writer writer = OpportunitySnapshot.create(path)) {
+            writer.add(new OpportunityLine(OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 3, 5));
+        }
+
+        try (OpportunitySnapshot snapshot = OpportunitySnapshot.open(path)) {
+            assertNull(snapshot.line(0).id);
+            assertEquals(List.of(OPPORTUNITY_1), snapshot.opportunityIds());
+        }
+    }
+
+    @Test
+    void roundTripsOnlyOpportunitiesWithoutLines() throws IOException {
+        Map<String, List<OpportunityLine>> extracted = new LinkedHashMap<>();
+        extracted.put(OPPORTUNITY_2, List.of());
+        Path path = directory.resolve("empty.snapshot");
+        OpportunitySnapshot.write(path, OpportunityLines.of(extracted));
+
+        try (OpportunitySnapshot snapshot = OpportunitySnapshot.open(path)) {
+            assertEquals(0, snapshot.lineCount());
+            assertTrue(snapshot.lines().isEmpty());
+            assertEquals(List.of(OPPORTUNITY_2), snapshot.opportunityIds());
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        Path path = directory.resolve("other.snapshot");
+        Files.write(path, new byte[24]);
+
+        assertThrows(IOException.class, () -> OpportunitySnapshot.open(path));
+    }
+
+    @Test
+    void rejectsOtherVersions() throws IOException {
+        // Version 1 snapshots had no OpportunityLineItem Id
+        ByteBuffer buffer = ByteBuffer.allocate(24 + 52)
+            .putInt(0x4F505053)
+            .putInt(1)
+            .putLong(1)
+            .putInt(0)
+            .putInt(0);
+        putId(buffer, OPPORTUNITY_1);
+        putId(buffer, PRICEBOOK_ENTRY_2);
+        buffer.putDouble(4).putDouble(25);
+        Path path = directory.resolve("v1.snapshot");
+        Files.write(path, buffer.array());
+
+        assertThrows(IOException.class, () -> OpportunitySnapshot.open(path));
+    }
+
+    @Test
+    void deletesTemporarySnapshotOnClose() throws IOException {
+        Path path = directory.resolve("temporary.snapshot");
+        OpportunitySnapshot.create(path).close();
+
+        OpportunitySnapshot.openTemporary(path).close();
+
+        assertFalse(Files.exists(path));
+    }
+
+    private static void putId(ByteBuffer buffer, String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.US_ASCII);
+        buffer.put(bytes).put(new byte[18 - bytes.length]);
+    }
+}
@@ -0,0 +1,112 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.sobject.SObject;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuotePricingTest {
+
+    private static final String OPPORTUNITY_1 = "006000000000001AAA";
+    private static final String OPPORTUNITY_2 = "006000000000002AAA";
+    private static final String PRICEBOOK_ENTRY_1 = "01u000000000001AAA";
+    private static final String PRICEBOOK_ENTRY_2 = "01u000000000002AAA";
+    private static final double DELTA = 1e-9;
+
+    @Test
+    void parsesVolumeTiers() {
+        NavigableMap<Double, Double> tiers = QuotePricing.volumeTiers(" 50:0.05, 10 : 0.02 ");
+
+        assertEquals(new TreeMap<>(Map.of(10.0, 0.02, 50.0, 0.05)), tiers);
+        assertTrue(QuotePricing.volumeTiers("").isEmpty());
+        assertTrue(QuotePricing.volumeTiers(null).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> QuotePricing.volumeTiers("10"));
+        assertThrows(NumberFormatException.class, () -> QuotePricing.volumeTiers("ten:0.02"));
+    }
+
+    @Test
+    void appliesHighestTierReachedAtBoundaries() {
+        NavigableMap<Double, Double> tiers = QuotePricing.volumeTiers("10:0.02,50:0.05");
+
+        assertEquals(0.0, QuotePricing.volumeDiscount(9.99, tiers));
+        assertEquals(0.02, QuotePricing.volumeDiscount(10, tiers));
+        assertEquals(0.02, QuotePricing.volumeDiscount(49.99, tiers));
+        assertEquals(0.05, QuotePricing.volumeDiscount(50, tiers));
+        assertEquals(0.05, QuotePricing.volumeDiscount(1000, tiers));
+        assertEquals(0.0, QuotePricing.volumeDiscount(1000, QuotePricing.volumeTiers("")));
+    }
+
+    @Test
+    void consolidatesLinesPerOpportunityAndPricebookEntry() {
+        List<OpportunityLine> lines = List.of(
+            new OpportunityLine("00k000000000001AAA", OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 4, 10),
+            new OpportunityLine("00k000000000002AAA", OPPORTUNITY_1, PRICEBOOK_ENTRY_2, 1, 7),
+            new OpportunityLine("00k000000000003AAA", OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 6, 20),
+            new OpportunityLine("00k000000000004AAA", OPPORTUNITY_2, PRICEBOOK_ENTRY_1, 2, 5));
+
+        List<OpportunityLine> consolidated = QuotePricing.consolidate(lines, QuotePricing.volumeTiers("10:0.1"));
+
+        assertEquals(3, consolidated.size());
+        OpportunityLine merged = consolidated.get(0);
+        assertNull(merged.id);
+        assertEquals(OPPORTUNITY_1, merged.opportunityId);
+        assertEquals(PRICEBOOK_ENTRY_1, merged.pricebookEntryId);
+        assertEquals(10, merged.quantity, DELTA);
+        // Weighted unit price (4 * 10 + 6 * 20) / 10 = 16, less 10% for reaching the 10 tier
+        assertEquals(14.4, merged.unitPrice, DELTA);
+        assertEquals(PRICEBOOK_ENTRY_2, consolidated.get(1).pricebookEntryId);
+        assertEquals(7, consolidated.get(1).unitPrice, DELTA);
+        assertEquals(OPPORTUNITY_2, consolidated.get(2).opportunityId);
+        assertEquals(5, consolidated.get(2).unitPrice, DELTA);
+    }
+
+    @Test
+    void consolidatesZeroQuantityAtFirstUnitPrice() {
+        List<OpportunityLine> consolidated = QuotePricing.consolidate(List.of(
+            new OpportunityLine(OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 0, 12),
+            new OpportunityLine(OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 0, 30)), QuotePricing.volumeTiers(""));
+
+        assertEquals(1, consolidated.size());
+        assertEquals(0, consolidated.get(0).quantity);
+        assertEquals(12, consolidated.get(0).unitPrice, DELTA);
+    }
+
+    @Test
+    void pricesLinesOfQuotedOpportunitiesLessWrittenLines() {
+        OpportunityLine written = new OpportunityLine("00k000000000001AAA", OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 2, 50);
+        OpportunityLine pending = new OpportunityLine("00k000000000002AAA", OPPORTUNITY_1, PRICEBOOK_ENTRY_2, 4, 25);
+        OpportunityLine unquoted = new OpportunityLine("00k000000000003AAA", OPPORTUNITY_2, PRICEBOOK_ENTRY_1, 1, 10);
+
+        QuotePricing.QuoteLineItems items = QuotePricing.quoteLineItems(List.of(written, pending, unquoted),
+            Map.of(OPPORTUNITY_1, "0Q0000000000001AAA"), 0.1, Set.of(QuotePricing.lineKey(written)));
+
+        assertEquals(1, items.size());
+        assertSame(pending, items.line(0));
+        SObject item = items.get(0);
+        assertEquals("0Q0000000000001AAA", item.getField("QuoteId"));
+        assertEquals(PRICEBOOK_ENTRY_2, item.getField("PricebookEntryId"));
+        assertEquals(22.5, (double) item.getField("UnitPrice"), DELTA);
+    }
+
+    @Test
+    void estimatesQuoteLineItemsWithoutBuildingThem() {
+        QuotePricing.QuoteLineItems items = QuotePricing.quoteLineItems(List.of(
+            new OpportunityLine("00k000000000001AAA", OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 3, 33.3)),
+            Map.of(OPPORTUNITY_1, "0Q0000000000001AAA"), 0.15);
+
+        assertEquals(AdaptiveWriteController.estimateBytes(items.get(0)), items.estimateBytes(0));
+    }
+
+    @Test
+    void keysConsolidatedLinesByOpportunityAndPricebookEntry() {
+        assertEquals("00k000000000001AAA", QuotePricing.lineKey(new OpportunityLine("00k000000000001AAA", OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 1, 1)));
+        assertEquals(OPPORTUNITY_1 + "|" + PRICEBOOK_ENTRY_1, QuotePricing.lineKey(new OpportunityLine(OPPORTUNITY_1, PRICEBOOK_ENTRY_1, 1, 1)));
+    }
+}
@@ -0,0 +1,214 @@
+package com.heroku.java.services;
+
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+
+import io.opentelemetry.api.OpenTelemetry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class WriteCoalescerTest {
+
+    private static final String ENDPOINT = "https://example.my.salesforce.com/services/Soap/u/62.0/00D000000000001";
+
+    private WriteCoalescer coalescer;
+    // Names of the records sent in each create call
+    private final List<List<String>> calls = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void createCoalescer() {
+        AdaptiveWriteController writeController = new AdaptiveWriteController();
+        ReflectionTestUtils.setField(writeController, "meter", OpenTelemetry.noop().getMeter("test"));
+        ReflectionTestUtils.setField(writeController, "maxBatchRecords", 5);
+        ReflectionTestUtils.setField(writeController, "maxBatchBytes", 1_000_000);
+        ReflectionTestUtils.setField(writeController, "minConcurrency", 1);
+        ReflectionTestUtils.setField(writeController, "initialConcurrency", 4);
+        ReflectionTestUtils.setField(writeController, "maxConcurrency", 4);
+        ReflectionTestUtils.setField(writeController, "targetLatencyMillis", 10_000L);
+        writeController.createInstruments();
+
+        coalescer = new WriteCoalescer();
+        ReflectionTestUtils.setField(coalescer, "writeController", writeController);
+        ReflectionTestUtils.setField(coalescer, "tracer", OpenTelemetry.noop().getTracer("test"));
+        ReflectionTestUtils.setField(coalescer, "meter", OpenTelemetry.noop().getMeter("test"));
+        ReflectionTestUtils.setField(coalescer, "enabled", true);
+        ReflectionTestUtils.setField(coalescer, "lingerMillis", 50L);
+        coalescer.createInstruments();
+    }
+
+    @AfterEach
+    void shutdown() {
+        coalescer.shutdown();
+    }
+
+    @Test
+    void coalescesOnlyPartBatches() {
+        assertTrue(coalescer.shouldCoalesce(4));
+        assertFalse(coalescer.shouldCoalesce(5));
+        ReflectionTestUtils.setField(coalescer, "enabled", false);
+        assertFalse(coalescer.shouldCoalesce(1));
+    }
+
+    @Test
+    void sendsOnceJobsFillCallAndRoutesResults() throws Exception {
+        ReflectionTestUtils.setField(coalescer, "lingerMillis", 60_000L);
+        PartnerConnection connection = connection("session");
+        coalescer.register(connection, "Quote");
+        coalescer.register(connection, "Quote");
+
+        CompletableFuture<SaveResult[]> first = coalescer.create(connection, quotes("a", 2));
+        CompletableFuture<SaveResult[]> second = coalescer.create(connection, quotes("b", 3));
+
+        assertEquals(List.of("a0", "a1"), ids(first));
+        assertEquals(List.of("b0", "b1", "b2"), ids(second));
+        assertEquals(List.of(List.of("a0", "a1", "b0", "b1", "b2")), calls);
+    }
+
+    @Test
+    void keepsRecordsOfJobInOneCall() throws Exception {
+        PartnerConnection connection = connection("session");
+        coalescer.register(connection, "Quote");
+        coalescer.register(connection, "Quote");
+
+        CompletableFuture<SaveResult[]> first = coalescer.create(connection, quotes("a", 3));
+        CompletableFuture<SaveResult[]> second = coalescer.create(connection, quotes("b", 3));
+
+        assertEquals(List.of("a0", "a1", "a2"), ids(first));
+        // Left pending as the call is not full, sent by the linger flush
+        assertEquals(List.of("b0", "b1", "b2"), ids(second));
+        assertEquals(List.of(List.of("a0", "a1", "a2"), List.of("b0", "b1", "b2")), calls);
+    }
+
+    @Test
+    void flushesPartCallAfterLinger() throws Exception {
+        PartnerConnection connection = connection("session");
+        coalescer.register(connection, "Quote");
+        coalescer.register(connection, "Quote");
+
+        CompletableFuture<SaveResult[]> future = coalescer.create(connection, quotes("a", 2));
+
+        assertEquals(List.of("a0", "a1"), ids(future));
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    void sendsAtOnceWithoutOtherJobs() throws Exception {
+        ReflectionTestUtils.setField(coalescer, "lingerMillis", 60_000L);
+        PartnerConnection connection = connection("session");
+        coalescer.register(connection, "Quote");
+
+        CompletableFuture<SaveResult[]> future = coalescer.create(connection, quotes("a", 2));
+
+        assertEquals(List.of("a0", "a1"), ids(future));
+    }
+
+    @Test
+    void sendsPendingRecordsOnceOtherJobCompletes() throws Exception {
+        ReflectionTestUtils.setField(coalescer, "lingerMillis", 60_000L);
+        PartnerConnection connection = connection("session");
+        coalescer.register(connection, "Quote");
+        WriteCoalescer.Registration other = coalescer.register(connection, "Quote");
+
+        CompletableFuture<SaveResult[]> future = coalescer.create(connection, quotes("a", 2));
+        assertFalse(future.isDone());
+        other.close();
+
+        assertEquals(List.of("a0", "a1"), ids(future));
+    }
+
+    @Test
+    void doesNotMergeSessions() throws Exception {
+        CompletableFuture<SaveResult[]> first = coalescer.create(connection("session1"), quotes("a", 2));
+        CompletableFuture<SaveResult[]> second = coalescer.create(connection("session2"), quotes("b", 2));
+
+        ids(first);
+        ids(second);
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    void sendsPendingRecordsOnShutdown() throws Exception {
+        ReflectionTestUtils.setField(coalescer, "lingerMillis", 60_000L);
+        PartnerConnection connection = connection("session");
+        coalescer.register(connection, "Quote");
+        coalescer.register(connection, "Quote");
+
+        CompletableFuture<SaveResult[]> future = coalescer.create(connection, quotes("a", 1));
+        assertFalse(future.isDone());
+        coalescer.shutdown();
+
+        assertEquals(List.of("a0"), ids(future));
+    }
+
+    @Test
+    void failsEveryJobInFailedCall() throws Exception {
+        PartnerConnection connection = connection("session");
+        coalescer.register(connection, "Quote");
+        coalescer.register(connection, "Quote");
+        doThrow(new ConnectionException("timed out")).when(connection).create(any());
+
+        CompletableFuture<SaveResult[]> first = coalescer.create(connection, quotes("a", 1));
+        CompletableFuture<SaveResult[]> second = coalescer.create(connection, quotes("b", 1));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+        assertEquals("timed out", e.getCause().getMessage());
+        assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Connection whose create call succeeds, with each result Id set to the Name of its record
+     */
+    private PartnerConnection connection(String sessionId) throws ConnectionException {
+        ConnectorConfig config = new ConnectorConfig();
+        config.setServiceEndpoint(ENDPOINT);
+        config.setSessionId(sessionId);
+        PartnerConnection connection = mock(PartnerConnection.class);
+        when(connection.getConfig()).thenReturn(config);
+        when(connection.create(any())).thenAnswer(invocation -> {
+            SObject[] records = invocation.getArgument(0);
+            List<String> names = Arrays.stream(records).map(record -> String.valueOf(record.getField("Name"))).toList();
+            calls.add(names);
+            return names.stream().map(name -> {
+                SaveResult result = new SaveResult();
+                result.setSuccess(true);
+                result.setId(name);
+                return result;
+            }).toArray(SaveResult[]::new);
+        });
+        return connection;
+    }
+
+    private static List<SObject> quotes(String prefix, int count) {
+        List<SObject> quotes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SObject quote = new SObject("Quote");
+            quote.setField("Name", prefix + i);
+            quotes.add(quote);
+        }
+        return quotes;
+    }
+
+    private static List<String> ids(CompletableFuture<SaveResult[]> future) throws Exception {
+        return Arrays.stream(future.get(5, TimeUnit.SECONDS)).map(SaveResult::getId).toList();
+    }
+}
@@ -0,0 +1,7 @@
+#!/bin/sh
+
+# Use the AOT processed context and AppCDS archive when built with the worker-cds Maven profile
+if [ -f target/worker/application.jsa ]; then
+    exec java $JAVA_OPTS -XX:SharedArchiveFile=target/worker/application.jsa -Dspring.aot.enabled=true -jar target/worker/pricing-engine-0.0.1-SNAPSHOT.jar --spring.profiles.active=worker
+fi
+exec java $JAVA_OPTS -Dspring.aot.enabled=true -jar target/pricing-engine-0.0.1-SNAPSHOT.jar --spring.profiles.active=worker